@@ -0,0 +1,138 @@
+/*
+ *  Argon2Calibrator.java
+ *
+ *  Copyright (c) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ */
+package io.francitoshi.lettera;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picks the Argon2 parameters this machine can afford for a target unlock
+ * time. Memory is what makes Argon2 expensive to attack, so it grows first,
+ * doubling while a single pass stays well under the target, and the
+ * iterations fill the time left.
+ *
+ * @author franci
+ */
+public class Argon2Calibrator
+{
+    static final int MIN_MEMORY_KB = 8*1024;
+    static final int MAX_MEMORY_KB = 1024*1024;
+    static final int MIN_ITERATIONS = 3;
+    static final int MAX_ITERATIONS = 64;
+    static final int MAX_PARALLELISM = 8;
+
+    /**
+     * How long a hash takes on this machine.
+     */
+    public interface Bench
+    {
+        long millis(int iterations, int memoryKB, int parallelism);
+    }
+
+    public static class Params
+    {
+        public final int iterations;
+        public final int memoryKB;
+        public final int parallelism;
+        public final long millis;
+
+        public Params(int iterations, int memoryKB, int parallelism, long millis)
+        {
+            this.iterations = iterations;
+            this.memoryKB = memoryKB;
+            this.parallelism = parallelism;
+            this.millis = millis;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "iterations="+iterations+" memoryKB="+memoryKB+" parallelism="+parallelism+" ("+millis+" ms)";
+        }
+    }
+
+    private final Bench bench;
+    private final int parallelism;
+    private final int maxMemoryKB;
+
+    public Argon2Calibrator(Bench bench, int parallelism, int maxMemoryKB)
+    {
+        this.bench = bench;
+        this.parallelism = parallelism;
+        this.maxMemoryKB = Math.max(MIN_MEMORY_KB, maxMemoryKB);
+    }
+
+    /**
+     * Benchmarks Lettera.ARGON2 with all the cores up to MAX_PARALLELISM and
+     * up to an eighth of the physical memory.
+     */
+    public Argon2Calibrator()
+    {
+        this(Argon2Calibrator::argon2, Math.max(1, Math.min(MAX_PARALLELISM, Runtime.getRuntime().availableProcessors())), getMaxMemoryKB());
+    }
+
+    /**
+     * @param targetMillis the unlock time to aim for
+     * @return the strongest parameters close to the target, never below
+     * MIN_MEMORY_KB and one iteration however slow the machine is
+     */
+    public Params calibrate(long targetMillis)
+    {
+        int memoryKB = MIN_MEMORY_KB;
+        long passMillis = Math.max(1, bench.millis(1, memoryKB, parallelism));
+        while(memoryKB*2L<=maxMemoryKB && passMillis*2*MIN_ITERATIONS<=targetMillis)
+        {
+            long next = Math.max(1, bench.millis(1, memoryKB*2, parallelism));
+            if(next*MIN_ITERATIONS>targetMillis)
+            {
+                break;
+            }
+            memoryKB *= 2;
+            passMillis = next;
+        }
+        int iterations = (int) Math.max(1, Math.min(MAX_ITERATIONS, targetMillis/passMillis));
+        return new Params(iterations, memoryKB, parallelism, iterations*passMillis);
+    }
+
+    private static long argon2(int iterations, int memoryKB, int parallelism)
+    {
+        char[] pass = "calibration".toCharArray();
+        byte[] salt = new byte[Lettera.SALT_BYTES];
+        long t0 = System.nanoTime();
+        byte[] hash = Lettera.ARGON2.rawHash(iterations, memoryKB, parallelism, pass, salt);
+        long t1 = System.nanoTime();
+        Arrays.fill(hash, (byte)0);
+        return TimeUnit.NANOSECONDS.toMillis(t1-t0);
+    }
+
+    private static int getMaxMemoryKB()
+    {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if(os instanceof com.sun.management.OperatingSystemMXBean)
+        {
+            long totalKB = ((com.sun.management.OperatingSystemMXBean) os).getTotalMemorySize()/1024;
+            return (int) Math.max(MIN_MEMORY_KB, Math.min(MAX_MEMORY_KB, totalKB/8));
+        }
+        return MAX_MEMORY_KB/4;
+    }
+}
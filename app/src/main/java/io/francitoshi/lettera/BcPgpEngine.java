@@ -0,0 +1,965 @@
+/*
+ *  BcPgpEngine.java
+ *
+ *  Copyright (c) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ */
+package io.francitoshi.lettera;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.bouncycastle.bcpg.ArmoredOutputStream;
+import org.bouncycastle.bcpg.BCPGKey;
+import org.bouncycastle.bcpg.ECPublicBCPGKey;
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.bcpg.KeyIdentifier;
+import org.bouncycastle.bcpg.RSAPublicBCPGKey;
+import org.bouncycastle.bcpg.SymmetricKeyAlgorithmTags;
+import org.bouncycastle.bcpg.sig.KeyFlags;
+import org.bouncycastle.gpg.PGPSecretKeyParser;
+import org.bouncycastle.gpg.SExpression;
+import org.bouncycastle.gpg.keybox.KeyBlob;
+import org.bouncycastle.gpg.keybox.PublicKeyRingBlob;
+import org.bouncycastle.gpg.keybox.bc.BcKeyBox;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.openpgp.OpenedPGPKeyData;
+import org.bouncycastle.openpgp.PGPCompressedData;
+import org.bouncycastle.openpgp.PGPEncryptedData;
+import org.bouncycastle.openpgp.PGPEncryptedDataGenerator;
+import org.bouncycastle.openpgp.PGPEncryptedDataList;
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPLiteralData;
+import org.bouncycastle.openpgp.PGPLiteralDataGenerator;
+import org.bouncycastle.openpgp.PGPOnePassSignature;
+import org.bouncycastle.openpgp.PGPOnePassSignatureList;
+import org.bouncycastle.openpgp.PGPPrivateKey;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPPublicKeyEncryptedData;
+import org.bouncycastle.openpgp.PGPPublicKeyRing;
+import org.bouncycastle.openpgp.PGPPublicKeyRingCollection;
+import org.bouncycastle.openpgp.PGPSecretKey;
+import org.bouncycastle.openpgp.PGPSecretKeyRing;
+import org.bouncycastle.openpgp.PGPSecretKeyRingCollection;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.PGPSignatureGenerator;
+import org.bouncycastle.openpgp.PGPSignatureList;
+import org.bouncycastle.openpgp.PGPSignatureSubpacketVector;
+import org.bouncycastle.openpgp.PGPUtil;
+import org.bouncycastle.openpgp.bc.BcPGPObjectFactory;
+import org.bouncycastle.openpgp.operator.KeyFingerPrintCalculator;
+import org.bouncycastle.openpgp.operator.PGPDigestCalculatorProvider;
+import org.bouncycastle.openpgp.operator.bc.BcKeyFingerprintCalculator;
+import org.bouncycastle.openpgp.operator.bc.BcPBESecretKeyDecryptorBuilder;
+import org.bouncycastle.openpgp.operator.bc.BcPGPContentSignerBuilder;
+import org.bouncycastle.openpgp.operator.bc.BcPGPContentVerifierBuilderProvider;
+import org.bouncycastle.openpgp.operator.bc.BcPGPDataEncryptorBuilder;
+import org.bouncycastle.openpgp.operator.bc.BcPGPDigestCalculatorProvider;
+import org.bouncycastle.openpgp.operator.bc.BcPublicKeyDataDecryptorFactory;
+import org.bouncycastle.openpgp.operator.bc.BcPublicKeyKeyEncryptionMethodGenerator;
+import org.bouncycastle.openpgp.operator.jcajce.JcePBEProtectionRemoverFactory;
+import org.bouncycastle.util.encoders.Hex;
+
+/**
+ * OpenPGP in the JVM with BouncyCastle, reading the keyrings of GnuPG: the
+ * keybox or the old pubring.gpg for the public keys, private-keys-v1.d or the
+ * old secring.gpg for the secret ones. The parsed keyrings are kept in memory
+ * until their files change, and a secret key stays unlocked for a while,
+ * like gpg-agent does, so a note costs no process and no S2K. A key file
+ * BouncyCastle can't read is exported once with gpg instead.
+ *
+ * @author franci
+ */
+public class BcPgpEngine implements PgpEngine
+{
+    static final int MAX_SEXPR_DEPTH = 10;
+    private static final KeyFingerPrintCalculator FINGERPRINT = new BcKeyFingerprintCalculator();
+    private static final PGPDigestCalculatorProvider DIGEST = new BcPGPDigestCalculatorProvider();
+    // gpg 2.3+ protects the private keys with AES-OCB, the JDK has no OCB
+    private static final Provider PROVIDER = new BouncyCastleProvider();
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor((r) ->
+    {
+        Thread th = new Thread(r, "BcPgpEngineTimer");
+        th.setDaemon(true);
+        return th;
+    });
+
+    private static class Unlocked
+    {
+        final PGPPrivateKey key;
+        final byte[] passDigest;
+        final long expires;
+
+        Unlocked(PGPPrivateKey key, byte[] passDigest, long expires)
+        {
+            this.key = key;
+            this.passDigest = passDigest;
+            this.expires = expires;
+        }
+    }
+
+    private final File home;
+    private final long ttlMillis;
+    private final byte[] salt = RANDOM.generateSeed(16);
+    private final Object lock = new Object();
+    private long pubringModified = -1;
+    private long secringModified = -1;
+    private long privateKeysModified = -1;
+    private List<PGPPublicKeyRing> publicRings = Collections.emptyList();
+    private List<PGPSecretKeyRing> secretRings = Collections.emptyList();
+    private List<OpenedPGPKeyData> privateKeys = Collections.emptyList();
+    private final Map<Long, PGPSecretKeyRing> exported = new HashMap<>();
+    private final Map<Long, Unlocked> unlocked = new HashMap<>();
+    private ScheduledFuture<?> sweeper;
+
+    public BcPgpEngine(File home)
+    {
+        this(home, 0);
+    }
+
+    /**
+     * @param home the GnuPG home directory, see {@link #getDefaultHome()}
+     * @param ttlMillis how long an unlocked secret key is kept in memory,
+     * like secret.cache.seconds does for the passwords, 0 to unlock it for
+     * every call
+     */
+    public BcPgpEngine(File home, long ttlMillis)
+    {
+        this.home = home;
+        this.ttlMillis = Math.max(0, ttlMillis);
+    }
+
+    /**
+     * @return $GNUPGHOME or ~/.gnupg
+     */
+    public static File getDefaultHome()
+    {
+        String gnupgHome = System.getenv("GNUPGHOME");
+        if(gnupgHome!=null && !gnupgHome.isEmpty())
+        {
+            return new File(gnupgHome);
+        }
+        return new File(System.getProperty("user.home"), ".gnupg");
+    }
+
+    @Override
+    public byte[] encryptAndSign(byte[] data, boolean armor, String from, char[] pass, String... to) throws IOException
+    {
+        try
+        {
+            refresh();
+            ArrayList<PGPPublicKey> recipients = new ArrayList<>();
+            for(String item : to)
+            {
+                PGPPublicKey key = getEncryptionKey(item);
+                if(key==null)
+                {
+                    throw new IOException("no public key for "+item);
+                }
+                recipients.add(key);
+            }
+            PGPPublicKey signer = null;
+            PGPPrivateKey signerKey = null;
+            for(PGPPublicKey item : getSigningKeys(from))
+            {
+                signerKey = getPrivateKey(item, pass, null);
+                if(signerKey!=null)
+                {
+                    signer = item;
+                    break;
+                }
+            }
+            if(signerKey==null)
+            {
+                throw new IOException("no secret key for "+from);
+            }
+
+            PGPEncryptedDataGenerator generator = new PGPEncryptedDataGenerator(new BcPGPDataEncryptorBuilder(SymmetricKeyAlgorithmTags.AES_256).setWithIntegrityPacket(true).setSecureRandom(RANDOM));
+            for(PGPPublicKey item : recipients)
+            {
+                generator.addMethod(new BcPublicKeyKeyEncryptionMethodGenerator(item).setSecureRandom(RANDOM));
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length+1024);
+            OutputStream out = armor ? new ArmoredOutputStream(bytes) : bytes;
+            // the payload comes already compressed, see PayloadCodec
+            try (OutputStream encrypted = generator.open(out, new byte[4096]))
+            {
+                PGPSignatureGenerator signature = new PGPSignatureGenerator(new BcPGPContentSignerBuilder(signer.getAlgorithm(), HashAlgorithmTags.SHA256), signer);
+                signature.init(PGPSignature.BINARY_DOCUMENT, signerKey);
+                signature.generateOnePassVersion(false).encode(encrypted);
+                PGPLiteralDataGenerator literal = new PGPLiteralDataGenerator();
+                try (OutputStream plain = literal.open(encrypted, PGPLiteralData.BINARY, "", data.length, new Date()))
+                {
+                    plain.write(data);
+                }
+                signature.update(data);
+                signature.generate().encode(encrypted);
+            }
+            if(armor)
+            {
+                out.close();
+            }
+            return bytes.toByteArray();
+        }
+        catch (PGPException ex)
+        {
+            throw new IOException(ex);
+        }
+    }
+
+    /**
+     * Every key unlocked for the batch is kept until its end, whatever the
+     * cache allows.
+     */
+    @Override
+    public List<Decrypted> decryptAll(List<byte[]> data, char[] pass)
+    {
+        HashMap<Long, PGPPrivateKey> keys = new HashMap<>();
+        ArrayList<Decrypted> list = new ArrayList<>(data.size());
+        for(byte[] item : data)
+        {
+            list.add(decrypt(item, pass, keys));
+        }
+        return list;
+    }
+
+    private Decrypted decrypt(byte[] data, char[] pass, Map<Long, PGPPrivateKey> keys)
+    {
+        PGPPublicKeyEncryptedData encrypted = null;
+        InputStream clear = null;
+        try
+        {
+            refresh();
+            BcPGPObjectFactory factory = new BcPGPObjectFactory(PGPUtil.getDecoderStream(new ByteArrayInputStream(data)));
+            Object item = factory.nextObject();
+            while(item!=null && !(item instanceof PGPEncryptedDataList))
+            {
+                item = factory.nextObject();
+            }
+            if(item==null)
+            {
+                throw new IOException("not an encrypted message");
+            }
+            for(PGPEncryptedData ed : (PGPEncryptedDataList) item)
+            {
+                if(ed instanceof PGPPublicKeyEncryptedData)
+                {
+                    PGPPublicKey pub = getPublicKey(((PGPPublicKeyEncryptedData) ed).getKeyIdentifier());
+                    PGPPrivateKey key = pub!=null ? getPrivateKey(pub, pass, keys) : null;
+                    if(key!=null)
+                    {
+                        encrypted = (PGPPublicKeyEncryptedData) ed;
+                        clear = encrypted.getDataStream(new BcPublicKeyDataDecryptorFactory(key));
+                        break;
+                    }
+                }
+            }
+            if(clear==null)
+            {
+                throw new IOException("no secret key for this message");
+            }
+        }
+        catch (IOException | PGPException | RuntimeException ex)
+        {
+            return new Decrypted(null, null, null, ex instanceof IOException ? (IOException) ex : new IOException(ex));
+        }
+
+        Signature signature = Signature.Unsigned;
+        String signer = null;
+        PGPOnePassSignature onePass = null;
+        boolean checked = false;
+        try
+        {
+            byte[] plaintext = null;
+            BcPGPObjectFactory factory = new BcPGPObjectFactory(clear);
+            for(Object item = factory.nextObject(); item!=null; item = factory.nextObject())
+            {
+                if(item instanceof PGPCompressedData)
+                {
+                    factory = new BcPGPObjectFactory(((PGPCompressedData) item).getDataStream());
+                }
+                else if(item instanceof PGPOnePassSignatureList && onePass==null && signature==Signature.Unsigned)
+                {
+                    PGPOnePassSignature ops = ((PGPOnePassSignatureList) item).get(0);
+                    PGPPublicKeyRing ring = getRing(ops.getKeyIdentifier());
+                    if(ring==null)
+                    {
+                        signature = Signature.Unknown;
+                        continue;
+                    }
+                    PGPPublicKey primary = ring.getPublicKey();
+                    PGPPublicKey key = ring.getPublicKey(ops.getKeyIdentifier());
+                    if(!isCertified(primary, key, KeyFlags.SIGN_DATA))
+                    {
+                        // a subkey the primary key never bound, or not for signing, gpg ignores it too
+                        signature = Signature.Unknown;
+                        continue;
+                    }
+                    signer = Hex.toHexString(primary.getFingerprint()).toUpperCase(Locale.ROOT);
+                    signature = primary.hasRevocation() || key.hasRevocation() ? Signature.Revoked
+                            : !isValid(primary) || !isValid(key) ? Signature.Expired : Signature.Good;
+                    ops.init(new BcPGPContentVerifierBuilderProvider(), key);
+                    onePass = ops;
+                }
+                else if(item instanceof PGPLiteralData)
+                {
+                    plaintext = ((PGPLiteralData) item).getDataStream().readAllBytes();
+                    if(onePass!=null)
+                    {
+                        onePass.update(plaintext);
+                    }
+                }
+                else if(item instanceof PGPSignatureList && onePass!=null && !checked)
+                {
+                    checked = true;
+                    if(!onePass.verify(((PGPSignatureList) item).get(0)))
+                    {
+                        signature = Signature.Bad;
+                    }
+                }
+            }
+            // a one-pass signature whose signature packet never came
+            if(onePass!=null && !checked)
+            {
+                signature = Signature.Bad;
+            }
+            if(plaintext==null)
+            {
+                throw new IOException("no literal data");
+            }
+            if(!encrypted.isIntegrityProtected())
+            {
+                throw new IOException("no integrity protection");
+            }
+            if(!encrypted.verify())
+            {
+                throw new IOException("integrity check failed");
+            }
+            if(signature!=Signature.Good)
+            {
+                throw new IOException(signature==Signature.Unsigned ? "unsigned message" : "signature "+signature.name().toLowerCase(Locale.ROOT));
+            }
+            return new Decrypted(plaintext, signature, signer, null);
+        }
+        catch (IOException | PGPException | RuntimeException ex)
+        {
+            // the message was decrypted, it's the content that is wrong
+            return new Decrypted(null, signature==Signature.Good ? Signature.Bad : signature, signer, ex instanceof IOException ? (IOException) ex : new IOException(ex));
+        }
+    }
+
+    /**
+     * Forgets the unlocked secret keys.
+     */
+    @Override
+    public void lock()
+    {
+        synchronized (lock)
+        {
+            unlocked.clear();
+            if(sweeper!=null)
+            {
+                sweeper.cancel(false);
+                sweeper = null;
+            }
+        }
+    }
+
+    /**
+     * Reloads the keyrings whose files changed since the last time.
+     */
+    private void refresh() throws IOException, PGPException
+    {
+        synchronized (lock)
+        {
+            File kbx = new File(home, "pubring.kbx");
+            File pubring = kbx.exists() ? kbx : new File(home, "pubring.gpg");
+            if(pubring.lastModified()!=pubringModified)
+            {
+                pubringModified = pubring.lastModified();
+                publicRings = pubring==kbx ? readKeyBox(kbx) : readPubring(pubring);
+                unlocked.clear();
+            }
+            File secring = new File(home, "secring.gpg");
+            if(secring.lastModified()!=secringModified)
+            {
+                secringModified = secring.lastModified();
+                secretRings = readSecring(secring);
+                unlocked.clear();
+            }
+            // adding or removing a key changes the directory
+            File dir = new File(home, "private-keys-v1.d");
+            if(dir.lastModified()!=privateKeysModified)
+            {
+                privateKeysModified = dir.lastModified();
+                privateKeys = readPrivateKeys(dir);
+                exported.clear();
+                unlocked.clear();
+            }
+        }
+    }
+
+    private static List<PGPPublicKeyRing> readKeyBox(File file) throws IOException
+    {
+        ArrayList<PGPPublicKeyRing> rings = new ArrayList<>();
+        try (InputStream in = new FileInputStream(file))
+        {
+            for(KeyBlob item : new BcKeyBox(in).getKeyBlobs())
+            {
+                // X.509 blobs belong to gpgsm
+                if(item instanceof PublicKeyRingBlob)
+                {
+                    rings.add(((PublicKeyRingBlob) item).getPGPPublicKeyRing());
+                }
+            }
+        }
+        return rings;
+    }
+
+    private static List<PGPPublicKeyRing> readPubring(File file) throws IOException, PGPException
+    {
+        ArrayList<PGPPublicKeyRing> rings = new ArrayList<>();
+        if(file.exists())
+        {
+            try (InputStream in = new FileInputStream(file))
+            {
+                new PGPPublicKeyRingCollection(in, FINGERPRINT).forEach(rings::add);
+            }
+        }
+        return rings;
+    }
+
+    private static List<PGPSecretKeyRing> readSecring(File file) throws IOException, PGPException
+    {
+        ArrayList<PGPSecretKeyRing> rings = new ArrayList<>();
+        if(file.exists())
+        {
+            try (InputStream in = new FileInputStream(file))
+            {
+                new PGPSecretKeyRingCollection(in, FINGERPRINT).forEach(rings::add);
+            }
+        }
+        return rings;
+    }
+
+    private static List<OpenedPGPKeyData> readPrivateKeys(File dir)
+    {
+        ArrayList<OpenedPGPKeyData> keys = new ArrayList<>();
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".key"));
+        for(File item : files!=null ? files : new File[0])
+        {
+            // the parser peeks at the format, it needs mark
+            try (InputStream in = new BufferedInputStream(new FileInputStream(item)))
+            {
+                keys.add(PGPSecretKeyParser.parse(in, MAX_SEXPR_DEPTH));
+            }
+            catch (IOException | RuntimeException ex)
+            {
+                // a key of a kind we don't read, smartcard stubs and such
+                System.getLogger(BcPgpEngine.class.getName()).log(System.Logger.Level.DEBUG, item.getName(), ex);
+            }
+        }
+        return keys;
+    }
+
+    private PGPPublicKey getPublicKey(KeyIdentifier keyid)
+    {
+        if(keyid.isWildcard())
+        {
+            // an anonymous recipient, not worth trying every key
+            return null;
+        }
+        synchronized (lock)
+        {
+            for(PGPPublicKeyRing ring : publicRings)
+            {
+                PGPPublicKey key = ring.getPublicKey(keyid);
+                if(key!=null)
+                {
+                    return key;
+                }
+            }
+            return null;
+        }
+    }
+
+    private PGPPublicKeyRing getRing(KeyIdentifier keyid)
+    {
+        if(keyid.isWildcard())
+        {
+            return null;
+        }
+        synchronized (lock)
+        {
+            for(PGPPublicKeyRing ring : publicRings)
+            {
+                if(ring.getPublicKey(keyid)!=null)
+                {
+                    return ring;
+                }
+            }
+            return null;
+        }
+    }
+
+    private List<PGPPublicKeyRing> getRings(String address)
+    {
+        String email = "<"+address.toLowerCase(Locale.ROOT)+">";
+        ArrayList<PGPPublicKeyRing> rings = new ArrayList<>();
+        synchronized (lock)
+        {
+            for(PGPPublicKeyRing ring : publicRings)
+            {
+                for(Iterator<String> it = ring.getPublicKey().getUserIDs(); it.hasNext();)
+                {
+                    String uid = it.next().toLowerCase(Locale.ROOT);
+                    if(uid.equals(address.toLowerCase(Locale.ROOT)) || uid.contains(email))
+                    {
+                        rings.add(ring);
+                        break;
+                    }
+                }
+            }
+        }
+        return rings;
+    }
+
+    /**
+     * @return the newest valid encryption subkey for the address, or null
+     */
+    private PGPPublicKey getEncryptionKey(String address)
+    {
+        PGPPublicKey found = null;
+        for(PGPPublicKeyRing ring : getRings(address))
+        {
+            if(!isValid(ring.getPublicKey()))
+            {
+                continue;
+            }
+            for(PGPPublicKey key : ring)
+            {
+                boolean encrypt = isCertified(ring.getPublicKey(), key, KeyFlags.ENCRYPT_COMMS|KeyFlags.ENCRYPT_STORAGE);
+                if(encrypt && isValid(key) && (found==null || key.getCreationTime().after(found.getCreationTime())))
+                {
+                    found = key;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return the valid signing keys for the address, subkeys first
+     */
+    private List<PGPPublicKey> getSigningKeys(String address)
+    {
+        ArrayList<PGPPublicKey> keys = new ArrayList<>();
+        for(PGPPublicKeyRing ring : getRings(address))
+        {
+            if(!isValid(ring.getPublicKey()))
+            {
+                continue;
+            }
+            for(PGPPublicKey key : ring)
+            {
+                boolean sign = isCertified(ring.getPublicKey(), key, KeyFlags.SIGN_DATA);
+                if(sign && isValid(key))
+                {
+                    keys.add(key.isMasterKey() ? keys.size() : 0, key);
+                }
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * What gpg checks before using a key: the primary key signs its own user
+     * id, a subkey is bound by the primary key, and a signing subkey signs
+     * that binding back. Only the flags of those signatures count, anybody
+     * can add a subkey or a signature to a copy of a keyring.
+     *
+     * @param flags the KeyFlags of the use, any of them will do
+     * @return true if the key is certified for the use
+     */
+    private static boolean isCertified(PGPPublicKey primary, PGPPublicKey key, int flags)
+    {
+        PGPSignature self = getSelfSignature(primary);
+        if(self==null)
+        {
+            return false;
+        }
+        boolean primaryKey = key.getKeyIdentifier().matchesExplicit(primary.getKeyIdentifier());
+        PGPSignature binding = primaryKey ? self : getBindingSignature(primary, key, (flags & KeyFlags.SIGN_DATA)!=0);
+        if(binding==null)
+        {
+            return false;
+        }
+        int keyFlags = binding.getHashedSubPackets()!=null ? binding.getHashedSubPackets().getKeyFlags() : 0;
+        if(keyFlags!=0)
+        {
+            return (keyFlags & flags)!=0;
+        }
+        // a key without flags, the primary key signs and any key of an encryption algorithm encrypts
+        return ((flags & KeyFlags.SIGN_DATA)!=0 && primaryKey) || ((flags & (KeyFlags.ENCRYPT_COMMS|KeyFlags.ENCRYPT_STORAGE))!=0 && key.isEncryptionKey());
+    }
+
+    /**
+     * @return the newest valid certification of a user id, or direct key
+     * signature, made by the primary key on itself, or null
+     */
+    private static PGPSignature getSelfSignature(PGPPublicKey primary)
+    {
+        PGPSignature found = null;
+        for(Iterator<String> uids = primary.getUserIDs(); uids.hasNext();)
+        {
+            String uid = uids.next();
+            for(Iterator<PGPSignature> it = primary.getSignaturesForID(uid); it!=null && it.hasNext();)
+            {
+                PGPSignature item = it.next();
+                if(item.isCertification() && isNewer(item, found) && isIssuedBy(item, primary) && verify(() -> item.verifyCertification(uid, primary), item, primary))
+                {
+                    found = item;
+                }
+            }
+        }
+        for(Iterator<PGPSignature> it = primary.getSignaturesOfType(PGPSignature.DIRECT_KEY); it.hasNext();)
+        {
+            PGPSignature item = it.next();
+            if(isNewer(item, found) && isIssuedBy(item, primary) && verify(() -> item.verifyCertification(primary), item, primary))
+            {
+                found = item;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @param signing a signing subkey also needs the primary key binding
+     * signature made by the subkey
+     * @return the newest valid subkey binding signature, or null
+     */
+    private static PGPSignature getBindingSignature(PGPPublicKey primary, PGPPublicKey key, boolean signing)
+    {
+        PGPSignature found = null;
+        for(Iterator<PGPSignature> it = key.getSignaturesOfType(PGPSignature.SUBKEY_BINDING); it.hasNext();)
+        {
+            PGPSignature item = it.next();
+            if(isNewer(item, found) && isIssuedBy(item, primary) && verify(() -> item.verifyCertification(primary, key), item, primary) && (!signing || isBackSigned(item, primary, key)))
+            {
+                found = item;
+            }
+        }
+        return found;
+    }
+
+    private static boolean isBackSigned(PGPSignature binding, PGPPublicKey primary, PGPPublicKey key)
+    {
+        try
+        {
+            for(PGPSignatureSubpacketVector subpackets : Arrays.asList(binding.getHashedSubPackets(), binding.getUnhashedSubPackets()))
+            {
+                if(subpackets==null)
+                {
+                    continue;
+                }
+                for(PGPSignature item : subpackets.getEmbeddedSignatures())
+                {
+                    if(item.getSignatureType()==PGPSignature.PRIMARYKEY_BINDING && verify(() -> item.verifyCertification(primary, key), item, key))
+                    {
+                        return true;
+                    }
+                }
+            }
+        }
+        catch (PGPException ex)
+        {
+            System.getLogger(BcPgpEngine.class.getName()).log(System.Logger.Level.DEBUG, (String) null, ex);
+        }
+        return false;
+    }
+
+    private interface Check
+    {
+        boolean verify() throws PGPException;
+    }
+
+    private static boolean verify(Check check, PGPSignature signature, PGPPublicKey by)
+    {
+        try
+        {
+            signature.init(new BcPGPContentVerifierBuilderProvider(), by);
+            return check.verify();
+        }
+        catch (PGPException | RuntimeException ex)
+        {
+            System.getLogger(BcPgpEngine.class.getName()).log(System.Logger.Level.DEBUG, (String) null, ex);
+            return false;
+        }
+    }
+
+    private static boolean isIssuedBy(PGPSignature signature, PGPPublicKey key)
+    {
+        // without an issuer subpacket the signature can only be tried
+        return signature.getKeyIdentifiers().isEmpty() || signature.hasKeyIdentifier(key.getKeyIdentifier());
+    }
+
+    private static boolean isNewer(PGPSignature signature, PGPSignature than)
+    {
+        return than==null || signature.getCreationTime().after(than.getCreationTime());
+    }
+
+    private static boolean isValid(PGPPublicKey key)
+    {
+        long validSeconds = key.getValidSeconds();
+        return !key.hasRevocation() && (validSeconds==0 || key.getCreationTime().getTime()+validSeconds*1000>System.currentTimeMillis());
+    }
+
+    /**
+     * @param keys the keys unlocked for the current batch, or null
+     * @return the unlocked secret key, or null if there's no secret for it
+     * @throws PGPException if the passphrase is wrong
+     */
+    private PGPPrivateKey getPrivateKey(PGPPublicKey pub, char[] pass, Map<Long, PGPPrivateKey> keys) throws PGPException, IOException
+    {
+        if(keys!=null && keys.containsKey(pub.getKeyID()))
+        {
+            return keys.get(pub.getKeyID());
+        }
+        byte[] passDigest = digest(pass);
+        synchronized (lock)
+        {
+            Unlocked item = unlocked.get(pub.getKeyID());
+            if(item!=null && item.expires>System.currentTimeMillis() && MessageDigest.isEqual(item.passDigest, passDigest))
+            {
+                return item.key;
+            }
+            PGPPrivateKey key = null;
+            for(PGPSecretKeyRing ring : secretRings)
+            {
+                PGPSecretKey secret = ring.getSecretKey(pub.getKeyIdentifier());
+                if(secret!=null)
+                {
+                    key = secret.extractPrivateKey(new BcPBESecretKeyDecryptorBuilder(DIGEST).build(pass));
+                    break;
+                }
+            }
+            for(int i=0; key==null && i<privateKeys.size(); i++)
+            {
+                OpenedPGPKeyData data = privateKeys.get(i);
+                if(matches(data, pub))
+                {
+                    try
+                    {
+                        JcePBEProtectionRemoverFactory remover = new JcePBEProtectionRemoverFactory(pass, DIGEST).setProvider(PROVIDER);
+                        key = data.getKeyData(pub, DIGEST, remover, FINGERPRINT, MAX_SEXPR_DEPTH).extractPrivateKey(null);
+                    }
+                    catch (PGPException | RuntimeException ex)
+                    {
+                        // BouncyCastle doesn't read every key file gpg writes, cv25519 or
+                        // ed25519 ones for instance, gpg tells those from a wrong passphrase
+                        System.getLogger(BcPgpEngine.class.getName()).log(System.Logger.Level.DEBUG, (String) null, ex);
+                        key = getExportedKey(pub, pass).extractPrivateKey(new BcPBESecretKeyDecryptorBuilder(DIGEST).build(pass));
+                    }
+                    break;
+                }
+            }
+            if(key!=null && keys!=null)
+            {
+                keys.put(pub.getKeyID(), key);
+            }
+            if(key!=null && ttlMillis>0)
+            {
+                unlocked.put(pub.getKeyID(), new Unlocked(key, passDigest, System.currentTimeMillis()+ttlMillis));
+                if(sweeper==null)
+                {
+                    sweeper = TIMER.scheduleWithFixedDelay(this::sweep, ttlMillis, ttlMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+            return key;
+        }
+    }
+
+    /**
+     * Drops the expired keys, the timer stops once there are none.
+     */
+    private void sweep()
+    {
+        long now = System.currentTimeMillis();
+        synchronized (lock)
+        {
+            unlocked.values().removeIf((item) -> item.expires<=now);
+            if(unlocked.isEmpty() && sweeper!=null)
+            {
+                sweeper.cancel(false);
+                sweeper = null;
+            }
+        }
+    }
+
+    /**
+     * Asks gpg for the secret key in OpenPGP format, protected with the same
+     * passphrase, once per key.
+     */
+    private PGPSecretKey getExportedKey(PGPPublicKey pub, char[] pass) throws IOException, PGPException
+    {
+        PGPSecretKeyRing ring = exported.get(pub.getKeyID());
+        if(ring==null)
+        {
+            PGPPublicKey primary = null;
+            for(PGPPublicKeyRing item : publicRings)
+            {
+                if(item.getPublicKey(pub.getKeyIdentifier())!=null)
+                {
+                    primary = item.getPublicKey();
+                    break;
+                }
+            }
+            if(primary==null)
+            {
+                throw new IOException("no public key for "+Long.toHexString(pub.getKeyID()));
+            }
+            ProcessBuilder pb = new ProcessBuilder("gpg", "--homedir", home.getPath(), "--batch", "--pinentry-mode", "loopback", "--passphrase-fd", "0", "--export-secret-keys", Hex.toHexString(primary.getFingerprint()));
+            pb.redirectError(ProcessBuilder.Redirect.DISCARD);
+            Process process = pb.start();
+            byte[] bytes;
+            try
+            {
+                ByteBuffer passBytes = StandardCharsets.UTF_8.encode(CharBuffer.wrap(pass));
+                try (OutputStream stdin = process.getOutputStream())
+                {
+                    stdin.write(passBytes.array(), passBytes.arrayOffset(), passBytes.remaining());
+                    stdin.write('\n');
+                }
+                finally
+                {
+                    Arrays.fill(passBytes.array(), (byte) 0);
+                }
+                bytes = process.getInputStream().readAllBytes();
+                if(process.waitFor()!=0 || bytes.length==0)
+                {
+                    throw new IOException("gpg can't export "+Hex.toHexString(primary.getFingerprint()));
+                }
+            }
+            catch (InterruptedException ex)
+            {
+                process.destroy();
+                Thread.currentThread().interrupt();
+                throw new IOException(ex);
+            }
+            ring = new PGPSecretKeyRing(bytes, FINGERPRINT);
+            for(PGPSecretKey item : ring)
+            {
+                exported.put(item.getKeyID(), ring);
+            }
+        }
+        return ring.getSecretKey(pub.getKeyIdentifier());
+    }
+
+    /**
+     * A key file of GnuPG is named after the keygrip, so the public part in
+     * it is compared instead.
+     */
+    private static boolean matches(OpenedPGPKeyData data, PGPPublicKey pub)
+    {
+        BCPGKey key = pub.getPublicKeyPacket().getKey();
+        BigInteger param = getPublicParam(key);
+        byte[] value = find(data.getKeyExpression(), key instanceof RSAPublicBCPGKey ? "n" : "q");
+        return param!=null && value!=null && param.equals(new BigInteger(1, value));
+    }
+
+    private static BigInteger getPublicParam(BCPGKey key)
+    {
+        if(key instanceof RSAPublicBCPGKey)
+        {
+            return ((RSAPublicBCPGKey) key).getModulus();
+        }
+        if(key instanceof ECPublicBCPGKey)
+        {
+            return ((ECPublicBCPGKey) key).getEncodedPoint();
+        }
+        return null;
+    }
+
+    private static byte[] find(SExpression expression, String label)
+    {
+        List<Object> values = expression.getValues();
+        if(values.size()>1 && label.equals(values.get(0)) && values.get(1) instanceof byte[])
+        {
+            return (byte[]) values.get(1);
+        }
+        for(Object item : values)
+        {
+            if(item instanceof SExpression)
+            {
+                byte[] value = find((SExpression) item, label);
+                if(value!=null)
+                {
+                    return value;
+                }
+            }
+        }
+        return null;
+    }
+
+    private byte[] digest(char[] pass)
+    {
+        try
+        {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            sha256.update(salt);
+            ByteBuffer bytes = StandardCharsets.UTF_8.encode(CharBuffer.wrap(pass));
+            sha256.update(bytes.duplicate());
+            if(bytes.hasArray())
+            {
+                Arrays.fill(bytes.array(), (byte) 0);
+            }
+            return sha256.digest();
+        }
+        catch (NoSuchAlgorithmException ex)
+        {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
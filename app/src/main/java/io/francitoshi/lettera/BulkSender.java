@@ -0,0 +1,180 @@
+/*
+ *  BulkSender.java
+ *
+ *  Copyright (c) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ */
+package io.francitoshi.lettera;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Sends a stream of notes to a chat as a pipeline, gpg encrypts the next notes
+ * while the previous ones are on their way over SMTP. Only a window of notes
+ * is in flight and the results are handed over as they come, so an endless
+ * input doesn't fill the memory. The notes are sent one after the other in
+ * input order, so the friend gets them in the order they were written.
+ *
+ * @author franci
+ */
+public class BulkSender
+{
+    static final int ENCRYPT_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    public static class Result
+    {
+        public final int index;
+        public final String text;
+        public final long millis;
+        public final Throwable error;
+
+        public Result(int index, String text, long millis, Throwable error)
+        {
+            this.index = index;
+            this.text = text;
+            this.millis = millis;
+            this.error = error;
+        }
+
+        public boolean isSent()
+        {
+            return error==null;
+        }
+    }
+
+    private static class Pending
+    {
+        final int index;
+        final String text;
+        final long t0;
+        final CompletableFuture<byte[]> ciphertext;
+
+        Pending(int index, String text, long t0, CompletableFuture<byte[]> ciphertext)
+        {
+            this.index = index;
+            this.text = text;
+            this.t0 = t0;
+            this.ciphertext = ciphertext;
+        }
+    }
+
+    private final Chat chat;
+    private final Account account;
+    private final KeyWrapper keyWrapper;
+    private final PgpEngine pgp;
+    private final SmtpPool smtp;
+    private final List<String> dictionary;
+    private final String codec;
+    private final boolean pgpMime;
+    private final int encryptThreads;
+
+    public BulkSender(Chat chat, Account account, KeyWrapper keyWrapper, PgpEngine pgp, SmtpPool smtp, List<String> dictionary, String codec, boolean pgpMime, int encryptThreads)
+    {
+        this.chat = chat;
+        this.account = account;
+        this.keyWrapper = keyWrapper;
+        this.pgp = pgp;
+        this.smtp = smtp;
+        this.dictionary = dictionary;
+        this.codec = codec;
+        this.pgpMime = pgpMime;
+        this.encryptThreads = encryptThreads;
+    }
+
+    public BulkSender(Chat chat, Account account, KeyWrapper keyWrapper, PgpEngine pgp, SmtpPool smtp, List<String> dictionary, String codec, boolean pgpMime)
+    {
+        this(chat, account, keyWrapper, pgp, smtp, dictionary, codec, pgpMime, ENCRYPT_THREADS);
+    }
+
+    /**
+     * Reads the texts as they come, a failed note doesn't stop the others.
+     * The notes are encrypted ahead on a pool and sent from the calling
+     * thread.
+     *
+     * @param texts the notes to send, read lazily
+     * @param results gets a result for every note, in input order, as soon
+     * as it's known
+     * @throws InterruptedException
+     */
+    public void send(Iterator<String> texts, Consumer<Result> results) throws InterruptedException
+    {
+        ExecutorService encryptExecutor = Executors.newFixedThreadPool(encryptThreads);
+        // enough to keep the encryption busy while a note is sent, but never the whole input
+        int window = 2*encryptThreads;
+        ArrayDeque<Pending> inFlight = new ArrayDeque<>();
+        try
+        {
+            for(int i=0; texts.hasNext(); i++)
+            {
+                final String text = texts.next();
+                inFlight.add(new Pending(i, text, System.nanoTime(), CompletableFuture.supplyAsync(() -> encrypt(text), encryptExecutor)));
+                if(inFlight.size()>=window)
+                {
+                    results.accept(deliver(inFlight.poll()));
+                }
+            }
+            while(!inFlight.isEmpty())
+            {
+                results.accept(deliver(inFlight.poll()));
+            }
+        }
+        finally
+        {
+            encryptExecutor.shutdownNow();
+        }
+    }
+
+    private Result deliver(Pending item) throws InterruptedException
+    {
+        Throwable error = null;
+        try
+        {
+            MailPush.deliver(chat, smtp, item.ciphertext.get(), codec, pgpMime);
+        }
+        catch (ExecutionException ex)
+        {
+            Throwable cause = ex.getCause();
+            error = cause instanceof CompletionException && cause.getCause()!=null ? cause.getCause() : cause;
+        }
+        catch (Exception ex)
+        {
+            error = ex;
+        }
+        return new Result(item.index, item.text, TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-item.t0), error);
+    }
+
+    private byte[] encrypt(String text)
+    {
+        try
+        {
+            return MailPush.encrypt(chat, account, keyWrapper, pgp, text, false, dictionary, pgpMime);
+        }
+        catch (Exception ex)
+        {
+            throw new CompletionException(ex);
+        }
+    }
+}
@@ -27,6 +27,8 @@ public class Chat implements Serializable
 {
     private static final long serialVersionUID = 1L;
     
+    static final String SUBJECT_PREFIX = "lettera ";
+    
     public final String id;
     public final String accountName;
     public final String accountAddress;
@@ -53,6 +55,31 @@ public class Chat implements Serializable
         return new Chat(account.name, account.address, account.keyid, friend.name, friend.address, friend.keyid, mutualAuthProof);
     }
 
+    /**
+     * @return the addresses the notes of this chat are sent to
+     */
+    public String[] getRecipients()
+    {
+        return new String[]{friendAddress};
+    }
+
+    /**
+     * @return the subject tag of the notes sent by this side of the chat
+     */
+    public String getSentTag()
+    {
+        return SUBJECT_PREFIX + accountKeyid + "-" + friendKeyid;
+    }
+
+    /**
+     * @return the subject tag of the notes written by the friend, that is the
+     * one to look for in our mailbox
+     */
+    public String getReceivedTag()
+    {
+        return SUBJECT_PREFIX + friendKeyid + "-" + accountKeyid;
+    }
+
     @Override
     public int hashCode()
     {
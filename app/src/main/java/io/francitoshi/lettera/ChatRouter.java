@@ -0,0 +1,146 @@
+/*
+ *  ChatRouter.java
+ *
+ *  Copyright (c) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ */
+package io.francitoshi.lettera;
+
+import jakarta.mail.Address;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.InternetAddress;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory index from the headers of an incoming note to its chat, keyed by
+ * sender address, recipient address and sender key id, plus the group id for
+ * the notes of a group chat.
+ *
+ * @author franci
+ */
+public class ChatRouter
+{
+    private final Map<String, Chat> routes = new ConcurrentHashMap<>();
+
+    public ChatRouter(Chat... chats)
+    {
+        for(Chat chat : chats)
+        {
+            put(chat);
+        }
+    }
+
+    public final void put(Chat chat)
+    {
+        if(chat instanceof GroupChat)
+        {
+            GroupChat group = (GroupChat) chat;
+            for(int i=0;i<group.memberAddresses.length;i++)
+            {
+                routes.put(key(group.memberAddresses[i], group.accountAddress, group.memberKeyids[i], group.groupId), chat);
+            }
+            return;
+        }
+        routes.put(key(chat.friendAddress, chat.accountAddress, chat.friendKeyid), chat);
+    }
+
+    public void remove(Chat chat)
+    {
+        if(chat instanceof GroupChat)
+        {
+            GroupChat group = (GroupChat) chat;
+            for(int i=0;i<group.memberAddresses.length;i++)
+            {
+                routes.remove(key(group.memberAddresses[i], group.accountAddress, group.memberKeyids[i], group.groupId), chat);
+            }
+            return;
+        }
+        routes.remove(key(chat.friendAddress, chat.accountAddress, chat.friendKeyid), chat);
+    }
+
+    public int size()
+    {
+        return routes.size();
+    }
+
+    /**
+     * @param from sender address
+     * @param to recipient address
+     * @param subject subject of the message
+     * @return the chat the note belongs to or null
+     */
+    public Chat route(String from, String to, String subject)
+    {
+        if(from==null || to==null || subject==null || !subject.startsWith(Chat.SUBJECT_PREFIX))
+        {
+            return null;
+        }
+        // "lettera <sender keyid>-<recipient keyid>[proof]", the proof has no separator
+        int dash = subject.indexOf('-', Chat.SUBJECT_PREFIX.length());
+        if(dash<0)
+        {
+            return null;
+        }
+        String keyid = subject.substring(Chat.SUBJECT_PREFIX.length(), dash);
+        // "lettera <sender keyid>-@<group id>"
+        if(subject.length()>dash+1 && subject.charAt(dash+1)==GroupChat.GROUP_MARK)
+        {
+            return routes.get(key(from, to, keyid, subject.substring(dash+2).trim()));
+        }
+        Chat chat = routes.get(key(from, to, keyid));
+        return chat!=null && subject.startsWith(chat.getReceivedTag()) ? chat : null;
+    }
+
+    public Chat route(Message message) throws MessagingException
+    {
+        Address[] from = message.getFrom();
+        Address[] to = message.getAllRecipients();
+        String subject = message.getSubject();
+        if(from==null || to==null || from.length==0 || subject==null)
+        {
+            return null;
+        }
+        String sender = getAddress(from[0]);
+        for(Address item : to)
+        {
+            Chat chat = route(sender, getAddress(item), subject);
+            if(chat!=null)
+            {
+                return chat;
+            }
+        }
+        return null;
+    }
+
+    static String getAddress(Address address)
+    {
+        return address instanceof InternetAddress ? ((InternetAddress) address).getAddress() : address.toString();
+    }
+
+    private static String key(String from, String to, String keyid)
+    {
+        return from.toLowerCase(Locale.ROOT)+" "+to.toLowerCase(Locale.ROOT)+" "+keyid.toUpperCase(Locale.ROOT);
+    }
+
+    private static String key(String from, String to, String keyid, String groupId)
+    {
+        return key(from, to, keyid)+" "+GroupChat.GROUP_MARK+groupId;
+    }
+}
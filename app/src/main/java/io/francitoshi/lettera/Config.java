@@ -40,24 +40,75 @@ public class Config
     private static final String ARGON2_MEMORY_KB = "argon2.memory_kb";
     private static final String ARGON2_ITERATIONS = "argon2.iterations";
     private static final String ARGON2_SALT_MASTER = "argon2.salt.master";
+    private static final String ARGON2_TARGET_MILLIS = "argon2.target_millis";
+    private static final String MAIL_HOUSEKEEPING = "mail.housekeeping";
+    private static final String MAIL_HOUSEKEEPING_FOLDER = "mail.housekeeping.folder";
+    private static final String MAIL_COALESCE_MILLIS = "mail.coalesce.millis";
+    private static final String MAIL_PGP_MIME = "mail.pgp_mime";
+    private static final String CRYPTO_BACKEND = "crypto.backend";
+    private static final String SECRET_CACHE_SECONDS = "secret.cache.seconds";
     
+    // what stores created before calibration were hashed with
     private static final int ITERATIONS = 26;
     private static final int MEM_KBSIZE = 65536;
     private static final int PARALELISM = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    // long enough to hurt an attacker, short enough for a cron job
+    static final long TARGET_MILLIS = 1000;
+    
+    private static final String HOUSEKEEPING_FOLDER = "Lettera";
+    // long enough to catch a burst of lines or a bot, short enough to go unnoticed
+    private static final int COALESCE_MILLIS = 400;
     
     private static final Rand RAND = Kripto.getRand();
     
+    /**
+     * What to do on the server with a mail once its note is stored, so INBOX
+     * doesn't grow forever.
+     */
+    public enum Housekeeping
+    {
+        None, Move, Delete
+    };
+    
+    /**
+     * Who does the OpenPGP work, gpg processes (one per batch of mails on
+     * decryption) or BouncyCastle in the JVM with the same keyrings.
+     */
+    public enum CryptoBackend
+    {
+        Gpg, BouncyCastle
+    };
+    
     private final byte[] salt;
     public final int iterations;
     public final int memoryKB;
     public final int parallelism;
+    public final long argon2TargetMillis;
+    public final Housekeeping housekeeping;
+    public final String housekeepingFolder;
+    public final int coalesceMillis;
+    public final boolean pgpMime;
+    public final CryptoBackend cryptoBackend;
+    public final int secretCacheSeconds;
 
     public Config(byte[] salt, int iterations, int memoryKB, int parallelism)
+    {
+        this(salt, iterations, memoryKB, parallelism, TARGET_MILLIS, Housekeeping.None, HOUSEKEEPING_FOLDER, COALESCE_MILLIS, false, CryptoBackend.Gpg, 0);
+    }
+
+    public Config(byte[] salt, int iterations, int memoryKB, int parallelism, long argon2TargetMillis, Housekeeping housekeeping, String housekeepingFolder, int coalesceMillis, boolean pgpMime, CryptoBackend cryptoBackend, int secretCacheSeconds)
     {
         this.salt = salt;
         this.iterations = iterations;
         this.memoryKB = memoryKB;
         this.parallelism = parallelism;
+        this.argon2TargetMillis = argon2TargetMillis;
+        this.housekeeping = housekeeping;
+        this.housekeepingFolder = housekeepingFolder;
+        this.coalesceMillis = coalesceMillis;
+        this.pgpMime = pgpMime;
+        this.cryptoBackend = cryptoBackend;
+        this.secretCacheSeconds = secretCacheSeconds;
     }
 
     public byte[] getSalt()
@@ -77,17 +128,66 @@ public class Config
             int iterations = Integer.parseInt(properties.getProperty(ARGON2_ITERATIONS, Integer.toString(ITERATIONS)));
             int memoryKB = Integer.parseInt(properties.getProperty(ARGON2_MEMORY_KB,Integer.toString(MEM_KBSIZE)));
             int parallelism = Integer.parseInt(properties.getProperty(ARGON2_PARALLELISM,Integer.toString(PARALELISM)));
+            long argon2TargetMillis = Long.parseLong(properties.getProperty(ARGON2_TARGET_MILLIS, Long.toString(TARGET_MILLIS)));
+            // opt-in, mails are left untouched unless asked
+            Housekeeping housekeeping = parseHousekeeping(properties.getProperty(MAIL_HOUSEKEEPING));
+            String housekeepingFolder = properties.getProperty(MAIL_HOUSEKEEPING_FOLDER, HOUSEKEEPING_FOLDER);
+            int coalesceMillis = Integer.parseInt(properties.getProperty(MAIL_COALESCE_MILLIS, Integer.toString(COALESCE_MILLIS)));
+            // opt-in until every friend runs a version that reads PGP/MIME
+            boolean pgpMime = Boolean.parseBoolean(properties.getProperty(MAIL_PGP_MIME, "false"));
+            CryptoBackend cryptoBackend = parseCryptoBackend(properties.getProperty(CRYPTO_BACKEND));
+            // opt-in, by default the passwords are unwrapped for every note and wiped right after
+            int secretCacheSeconds = Integer.parseInt(properties.getProperty(SECRET_CACHE_SECONDS, "0"));
             
-            return new Config(salt, iterations, memoryKB, parallelism);
+            return new Config(salt, iterations, memoryKB, parallelism, argon2TargetMillis, housekeeping, housekeepingFolder, coalesceMillis, pgpMime, cryptoBackend, secretCacheSeconds);
         }
         return null;
     }
+    static Housekeeping parseHousekeeping(String value)
+    {
+        if(value!=null)
+        {
+            for(Housekeeping item : Housekeeping.values())
+            {
+                if(item.name().equalsIgnoreCase(value.trim()))
+                {
+                    return item;
+                }
+            }
+        }
+        return Housekeeping.None;
+    }
+    static CryptoBackend parseCryptoBackend(String value)
+    {
+        if(value!=null)
+        {
+            for(CryptoBackend item : CryptoBackend.values())
+            {
+                if(item.name().equalsIgnoreCase(value.trim()))
+                {
+                    return item;
+                }
+            }
+        }
+        return CryptoBackend.Gpg;
+    }
+    
     public static Config createDefault(File configProperties) throws IOException, Base64DecoderException
     {
+        return createDefault(configProperties, TARGET_MILLIS);
+    }
+
+    /**
+     * @param targetMillis the Argon2 parameters are calibrated on this
+     * machine to unlock in about this time
+     */
+    public static Config createDefault(File configProperties, long targetMillis) throws IOException, Base64DecoderException
+    {
+        Argon2Calibrator.Params params = new Argon2Calibrator().calibrate(targetMillis);
         byte[] salt     = RAND.nextBytes(new byte[32]);
-        int iterations  = ITERATIONS;
-        int memoryKB    = MEM_KBSIZE;
-        int parallelism = PARALELISM;
+        int iterations  = params.iterations;
+        int memoryKB    = params.memoryKB;
+        int parallelism = params.parallelism;
         Properties properties = new Properties();
         
         
@@ -95,8 +195,39 @@ public class Config
         properties.setProperty(ARGON2_ITERATIONS, Integer.toString(iterations));
         properties.setProperty(ARGON2_MEMORY_KB, Integer.toString(memoryKB));
         properties.setProperty(ARGON2_PARALLELISM,Integer.toString(parallelism));
-        properties.store(new FileOutputStream(configProperties),"created with default values by lettera");
+        properties.setProperty(ARGON2_TARGET_MILLIS, Long.toString(targetMillis));
+        properties.store(new FileOutputStream(configProperties),"created with values calibrated by lettera");
         
-        return new Config(salt, iterations, memoryKB, parallelism);
+        return new Config(salt, iterations, memoryKB, parallelism, targetMillis, Housekeeping.None, HOUSEKEEPING_FOLDER, COALESCE_MILLIS, false, CryptoBackend.Gpg, 0);
+    }
+
+    /**
+     * @return the same config with other Argon2 parameters
+     */
+    public Config withArgon2(byte[] salt, Argon2Calibrator.Params params, long targetMillis)
+    {
+        return new Config(salt, params.iterations, params.memoryKB, params.parallelism, targetMillis, housekeeping, housekeepingFolder, coalesceMillis, pgpMime, cryptoBackend, secretCacheSeconds);
+    }
+
+    /**
+     * Copies configProperties into target with the Argon2 parameters of this
+     * config, the other properties are kept as they are.
+     */
+    public void storeArgon2(File configProperties, File target) throws IOException
+    {
+        Properties properties = new Properties();
+        try(FileInputStream in = new FileInputStream(configProperties))
+        {
+            properties.load(in);
+        }
+        properties.setProperty(ARGON2_SALT_MASTER, Base64.encode(salt));
+        properties.setProperty(ARGON2_ITERATIONS, Integer.toString(iterations));
+        properties.setProperty(ARGON2_MEMORY_KB, Integer.toString(memoryKB));
+        properties.setProperty(ARGON2_PARALLELISM,Integer.toString(parallelism));
+        properties.setProperty(ARGON2_TARGET_MILLIS, Long.toString(argon2TargetMillis));
+        try(FileOutputStream out = new FileOutputStream(target))
+        {
+            properties.store(out, "rekeyed by lettera");
+        }
     }
 }
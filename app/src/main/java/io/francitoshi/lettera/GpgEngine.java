@@ -0,0 +1,328 @@
+/*
+ *  GpgEngine.java
+ *
+ *  Copyright (c) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ */
+package io.francitoshi.lettera;
+
+import io.nut.base.crypto.gpg.GPG;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+/**
+ * Runs a gpg process per operation, the keys stay in gpg-agent and the
+ * status lines on stderr tell how the decryption and the signature went. A
+ * batch is decrypted by a single gpg with --decrypt-files, so the key is
+ * unlocked once and there's one process per poll. The messages and their
+ * plaintexts go through a private temporary folder, removed right after.
+ *
+ * @author franci
+ */
+public class GpgEngine implements PgpEngine
+{
+    private static final String STATUS = "[GNUPG:] ";
+    private static final String EXTENSION = ".gpg";
+
+    private static final ExecutorService PIPES = Executors.newCachedThreadPool((r) ->
+    {
+        Thread th = new Thread(r, "GpgEnginePipe");
+        th.setDaemon(true);
+        return th;
+    });
+
+    private final GPG armored;
+    private final GPG binary;
+
+    public GpgEngine(GPG armored, GPG binary)
+    {
+        this.armored = armored;
+        this.binary = binary;
+    }
+
+    @Override
+    public byte[] encryptAndSign(byte[] data, boolean armor, String from, char[] pass, String... to) throws IOException, InterruptedException
+    {
+        return (armor ? armored : binary).encryptAndSign(data, from, pass, to);
+    }
+
+    @Override
+    public List<Decrypted> decryptAll(List<byte[]> data, char[] pass) throws InterruptedException
+    {
+        ArrayList<Decrypted> list = new ArrayList<>(data.size());
+        if(data.isEmpty())
+        {
+            return list;
+        }
+        Path folder = null;
+        try
+        {
+            folder = Files.createTempDirectory("lettera-", PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+            ArrayList<String> command = new ArrayList<>(Arrays.asList("gpg", "--batch", "--yes", "--no-tty", "--pinentry-mode", "loopback", "--passphrase-fd", "0", "--status-fd", "2", "--decrypt-files"));
+            for(int i=0;i<data.size();i++)
+            {
+                Path file = folder.resolve(i+EXTENSION);
+                Files.write(file, data.get(i));
+                command.add(file.toString());
+            }
+            List<List<String>> status = run(new ProcessBuilder(command).start(), pass, data.size());
+            for(int i=0;i<data.size();i++)
+            {
+                if(status.get(i)==null)
+                {
+                    list.add(new Decrypted(null, null, null, new IOException("gpg didn't get to the message")));
+                    continue;
+                }
+                // gpg writes the plaintext next to the message, without the extension
+                Path plain = folder.resolve(Integer.toString(i));
+                list.add(parse(status.get(i), Files.exists(plain) ? Files.readAllBytes(plain) : new byte[0]));
+            }
+        }
+        catch (IOException ex)
+        {
+            while(list.size()<data.size())
+            {
+                list.add(new Decrypted(null, null, null, ex));
+            }
+        }
+        finally
+        {
+            delete(folder);
+        }
+        return list;
+    }
+
+    /**
+     * @return the status lines of every file, null for the ones gpg didn't
+     * start
+     */
+    private static List<List<String>> run(Process process, char[] pass, int files) throws IOException, InterruptedException
+    {
+        try
+        {
+            // the passphrase is the only line of stdin, read once for all the files
+            CompletableFuture<Void> input = CompletableFuture.runAsync(() ->
+            {
+                ByteBuffer passBytes = StandardCharsets.UTF_8.encode(CharBuffer.wrap(pass));
+                try (OutputStream stdin = process.getOutputStream())
+                {
+                    stdin.write(passBytes.array(), passBytes.arrayOffset(), passBytes.remaining());
+                    stdin.write('\n');
+                }
+                catch (IOException ex)
+                {
+                    // gpg gave up early, the status tells why
+                    System.getLogger(GpgEngine.class.getName()).log(System.Logger.Level.DEBUG, (String) null, ex);
+                }
+                finally
+                {
+                    Arrays.fill(passBytes.array(), (byte) 0);
+                }
+            }, PIPES);
+            CompletableFuture<List<String>> status = CompletableFuture.supplyAsync(() -> readStatus(process.getErrorStream()), PIPES);
+            try (InputStream stdout = process.getInputStream())
+            {
+                stdout.transferTo(OutputStream.nullOutputStream());
+            }
+            process.waitFor();
+            input.join();
+            return split(status.join(), files);
+        }
+        catch (CompletionException ex)
+        {
+            throw new IOException(ex.getCause());
+        }
+        finally
+        {
+            process.destroy();
+        }
+    }
+
+    /**
+     * Splits the status of --decrypt-files by the FILE_START of each file,
+     * named by its position in the batch.
+     */
+    static List<List<String>> split(List<String> status, int files)
+    {
+        ArrayList<List<String>> list = new ArrayList<>(Collections.nCopies(files, (List<String>) null));
+        List<String> current = null;
+        for(String line : status)
+        {
+            if(line.startsWith("FILE_START "))
+            {
+                String name = Paths.get(line.substring(line.indexOf(' ', "FILE_START ".length())+1)).getFileName().toString();
+                int index = Integer.parseInt(name.substring(0, name.length()-EXTENSION.length()));
+                current = new ArrayList<>();
+                list.set(index, current);
+            }
+            else if(line.equals("FILE_DONE"))
+            {
+                current = null;
+            }
+            else if(current!=null)
+            {
+                current.add(line);
+            }
+        }
+        return list;
+    }
+
+    private static void delete(Path folder)
+    {
+        if(folder==null)
+        {
+            return;
+        }
+        try(Stream<Path> files = Files.list(folder))
+        {
+            for(Path item : (Iterable<Path>) files::iterator)
+            {
+                Files.deleteIfExists(item);
+            }
+            Files.deleteIfExists(folder);
+        }
+        catch (IOException ex)
+        {
+            System.getLogger(GpgEngine.class.getName()).log(System.Logger.Level.ERROR, (String) null, ex);
+        }
+    }
+
+    private static List<String> readStatus(InputStream stderr)
+    {
+        ArrayList<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(stderr, StandardCharsets.UTF_8)))
+        {
+            for(String line; (line = reader.readLine())!=null;)
+            {
+                if(line.startsWith(STATUS))
+                {
+                    lines.add(line.substring(STATUS.length()));
+                }
+            }
+        }
+        catch (IOException ex)
+        {
+            throw new UncheckedIOException(ex);
+        }
+        return lines;
+    }
+
+    /**
+     * Applies the rules of {@link PgpEngine.Decrypted} to what gpg said: the
+     * plaintext only counts with DECRYPTION_OKAY, GOODMDC and a single kind
+     * of signature, all of them GOODSIG.
+     *
+     * @param status the status lines without the [GNUPG:] prefix
+     * @param plaintext what gpg wrote to stdout
+     */
+    static Decrypted parse(List<String> status, byte[] plaintext)
+    {
+        boolean opened = false;
+        boolean okay = false;
+        boolean mdc = false;
+        boolean failed = false;
+        Signature signature = Signature.Unsigned;
+        String signer = null;
+        for(String line : status)
+        {
+            String[] words = line.split(" ");
+            Signature state = null;
+            switch(words[0])
+            {
+                case "DECRYPTION_INFO":
+                    // only once the session key is known
+                    opened = true;
+                    break;
+                case "DECRYPTION_OKAY":
+                    okay = true;
+                    break;
+                case "GOODMDC":
+                    mdc = true;
+                    break;
+                case "DECRYPTION_FAILED":
+                case "BADMDC":
+                    failed = true;
+                    break;
+                case "GOODSIG":
+                    state = Signature.Good;
+                    break;
+                case "BADSIG":
+                    state = Signature.Bad;
+                    break;
+                case "ERRSIG":
+                    state = Signature.Unknown;
+                    break;
+                case "EXPSIG":
+                case "EXPKEYSIG":
+                    state = Signature.Expired;
+                    break;
+                case "REVKEYSIG":
+                    state = Signature.Revoked;
+                    break;
+                case "VALIDSIG":
+                    // the last field is the fingerprint of the primary key
+                    if(signer==null && words.length>1)
+                    {
+                        signer = words[words.length-1];
+                    }
+                    break;
+            }
+            // the first signature that isn't good decides
+            if(state!=null && (signature==Signature.Unsigned || signature==Signature.Good))
+            {
+                signature = state;
+            }
+        }
+        if(!opened)
+        {
+            // no session key, a wrong passphrase or a key we don't have
+            return new Decrypted(null, null, null, new IOException("gpg can't decrypt the message"));
+        }
+        String error = failed || !okay ? "decryption failed"
+                : !mdc ? "no integrity protection"
+                : signature==Signature.Unsigned ? "unsigned message"
+                : signature!=Signature.Good ? "signature "+signature.name().toLowerCase(Locale.ROOT)
+                : signer==null ? "no signer"
+                : null;
+        if(error!=null)
+        {
+            return new Decrypted(null, signature==Signature.Good ? Signature.Bad : signature, signer, new IOException(error));
+        }
+        return new Decrypted(plaintext, signature, signer, null);
+    }
+}
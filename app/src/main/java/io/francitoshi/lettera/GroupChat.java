@@ -0,0 +1,132 @@
+/*
+ *  GroupChat.java
+ *
+ *  Copyright (c) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ */
+package io.francitoshi.lettera;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * A chat between an account and several friends. A note is encrypted once to
+ * the keys of all the members and sent in a single mail to all of them, tagged
+ * with the group id instead of the key id of a friend:
+ * <pre>
+ * lettera &lt;sender keyid&gt;-@&lt;group id&gt;
+ * </pre>
+ * Every member sets up the group with the same id and the other members.
+ *
+ * @author franci
+ */
+public class GroupChat extends Chat
+{
+    private static final long serialVersionUID = 1L;
+
+    static final char GROUP_MARK = '@';
+
+    public final String groupId;
+    public final String[] memberNames;
+    public final String[] memberAddresses;
+    public final String[] memberKeyids;
+
+    public GroupChat(String accountName, String accountAddress, String accountKeyid, String groupId, String[] memberNames, String[] memberAddresses, String[] memberKeyids)
+    {
+        super(accountName, accountAddress, accountKeyid, GROUP_MARK+groupId, String.join(",", memberAddresses), String.join(",", memberKeyids), null);
+        this.groupId = groupId;
+        this.memberNames = memberNames;
+        this.memberAddresses = memberAddresses;
+        this.memberKeyids = memberKeyids;
+    }
+
+    public static GroupChat build(Account account, String groupId, Friend... members)
+    {
+        String[] names = new String[members.length];
+        String[] addresses = new String[members.length];
+        String[] keyids = new String[members.length];
+        for(int i=0;i<members.length;i++)
+        {
+            names[i] = members[i].name;
+            addresses[i] = members[i].address;
+            keyids[i] = members[i].keyid;
+        }
+        return new GroupChat(account.name, account.address, account.keyid, groupId, names, addresses, keyids);
+    }
+
+    /**
+     * @return true if the id fits in a subject tag
+     */
+    public static boolean isValidId(String groupId)
+    {
+        return groupId!=null && groupId.matches("[A-Za-z0-9_.]+");
+    }
+
+    @Override
+    public String[] getRecipients()
+    {
+        return memberAddresses.clone();
+    }
+
+    @Override
+    public String getSentTag()
+    {
+        return SUBJECT_PREFIX + accountKeyid + "-" + GROUP_MARK + groupId;
+    }
+
+    /**
+     * @return the subject tag of the notes written by the member
+     */
+    public String getReceivedTag(int member)
+    {
+        return SUBJECT_PREFIX + memberKeyids[member] + "-" + GROUP_MARK + groupId;
+    }
+
+    /**
+     * @return the index of the member with that address, or -1
+     */
+    public int indexOf(String address)
+    {
+        for(int i=0;i<memberAddresses.length;i++)
+        {
+            if(memberAddresses[i].toLowerCase(Locale.ROOT).equals(address.toLowerCase(Locale.ROOT)))
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        int hash = super.hashCode();
+        hash = 37 * hash + Arrays.hashCode(this.memberNames);
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if(!super.equals(obj))
+        {
+            return false;
+        }
+        final GroupChat other = (GroupChat) obj;
+        return Arrays.equals(this.memberNames, other.memberNames);
+    }
+}
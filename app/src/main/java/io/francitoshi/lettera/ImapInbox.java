@@ -0,0 +1,509 @@
+/*
+ *  ImapInbox.java
+ *
+ *  Copyright (c) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ */
+package io.francitoshi.lettera;
+
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.MessageVanishedEvent;
+import com.sun.mail.imap.ResyncData;
+import io.nut.base.security.SecureChars;
+import jakarta.mail.FetchProfile;
+import jakarta.mail.Flags;
+import jakarta.mail.Folder;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.UIDFolder;
+import jakarta.mail.event.MailEvent;
+import jakarta.mail.event.MessageCountAdapter;
+import jakarta.mail.event.MessageCountEvent;
+import jakarta.mail.search.SearchTerm;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps the INBOX of an account selected over a single IMAP connection, so it
+ * can wait for new mail with IDLE (RFC 2177) instead of polling.
+ *
+ * @author franci
+ */
+public class ImapInbox implements AutoCloseable
+{
+    static final String INBOX = "INBOX";
+    static final String IDLE = "IDLE";
+    static final String CONDSTORE = "CONDSTORE";
+    static final String QRESYNC = "QRESYNC";
+    static final String MOVE = "MOVE";
+    static final String UIDPLUS = "UIDPLUS";
+    static final int IMAPS_PORT = 993;
+
+    // one FETCH for the headers needed to route the whole candidate set
+    private static final FetchProfile ENVELOPE_PROFILE = new FetchProfile();
+    // and one more for the bodies of the messages that belong to a chat
+    private static final FetchProfile MESSAGE_PROFILE = new FetchProfile();
+    static
+    {
+        ENVELOPE_PROFILE.add(FetchProfile.Item.ENVELOPE);
+        ENVELOPE_PROFILE.add(IMAPFolder.FetchProfileItem.INTERNALDATE);
+        ENVELOPE_PROFILE.add(UIDFolder.FetchProfileItem.UID);
+        MESSAGE_PROFILE.add(IMAPFolder.FetchProfileItem.MESSAGE);
+    }
+
+    // servers may drop an idle client after 30 minutes, so IDLE is renewed before
+    static final long IDLE_MILLIS = 20 * 60_000;
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor((r) ->
+    {
+        Thread th = new Thread(r, "ImapInboxTimer");
+        th.setDaemon(true);
+        return th;
+    });
+
+    private final String host;
+    private final int port;
+    private final boolean auth;
+    private final boolean starttls;
+    private final String username;
+    private final SecureChars password;
+    private final int mode;
+
+    private volatile IMAPStore store;
+    private volatile IMAPFolder folder;
+    private volatile boolean condstore;
+    private volatile long selectModSeq;
+    // a wakeup between two idles, the new mail it saw won't be notified again
+    private final AtomicBoolean woken = new AtomicBoolean();
+
+    private final ConcurrentLinkedQueue<Long> vanished = new ConcurrentLinkedQueue<>();
+    private final MessageCountAdapter vanishedListener = new MessageCountAdapter()
+    {
+        @Override
+        public void messagesRemoved(MessageCountEvent event)
+        {
+            if(event instanceof MessageVanishedEvent)
+            {
+                addVanished((MessageVanishedEvent) event);
+            }
+        }
+    };
+
+    public ImapInbox(String host, int port, boolean auth, boolean starttls, String username, SecureChars password)
+    {
+        this(host, port, auth, starttls, username, password, false);
+    }
+
+    /**
+     * @param readWrite INBOX is selected READ_WRITE, needed to move or delete
+     * messages
+     */
+    public ImapInbox(String host, int port, boolean auth, boolean starttls, String username, SecureChars password, boolean readWrite)
+    {
+        this.host = host;
+        this.port = port;
+        this.auth = auth;
+        this.starttls = starttls;
+        this.username = username;
+        this.password = password;
+        this.mode = readWrite ? Folder.READ_WRITE : Folder.READ_ONLY;
+    }
+
+    /**
+     * Opens the connection and selects INBOX, enabling QRESYNC (RFC 7162) when
+     * the server supports it, so the UIDs expunged since the given state are
+     * reported without listing the folder.
+     *
+     * @param state the last known state or null
+     * @throws MessagingException
+     */
+    public void connect(MailboxState state) throws MessagingException
+    {
+        String protocol = port==IMAPS_PORT ? "imaps" : "imap";
+        Properties props = new Properties();
+        props.setProperty("mail.store.protocol", protocol);
+        props.setProperty("mail."+protocol+".host", host);
+        props.setProperty("mail."+protocol+".port", Integer.toString(port));
+        props.setProperty("mail."+protocol+".auth", Boolean.toString(auth));
+        props.setProperty("mail."+protocol+".starttls.enable", Boolean.toString(starttls));
+        // BODY.PEEK leaves \Seen untouched, other devices still see the mail as new
+        props.setProperty("mail."+protocol+".peek", "true");
+
+        IMAPStore imapStore = (IMAPStore) Session.getInstance(props).getStore(protocol);
+        imapStore.connect(host, port, username, password.apply((pass) -> new String(pass)));
+        IMAPFolder inbox = (IMAPFolder) imapStore.getFolder(INBOX);
+        inbox.addMessageCountListener(vanishedListener);
+
+        List<MailEvent> events = null;
+        if(state!=null && state.highestModSeq>0 && imapStore.hasCapability(QRESYNC))
+        {
+            events = inbox.open(mode, new ResyncData(state.uidValidity, state.highestModSeq));
+        }
+        else if(imapStore.hasCapability(CONDSTORE))
+        {
+            events = inbox.open(mode, ResyncData.CONDSTORE);
+        }
+        else
+        {
+            inbox.open(mode);
+        }
+        if(events!=null)
+        {
+            // flag changes are also returned by CHANGEDSINCE, so only VANISHED matters here
+            for(MailEvent item : events)
+            {
+                if(item instanceof MessageVanishedEvent)
+                {
+                    addVanished((MessageVanishedEvent) item);
+                }
+            }
+        }
+        this.condstore = imapStore.hasCapability(CONDSTORE);
+        this.selectModSeq = condstore ? inbox.getHighestModSeq() : 0;
+        this.store = imapStore;
+        this.folder = inbox;
+    }
+
+    public boolean isConnected()
+    {
+        IMAPFolder inbox = this.folder;
+        return inbox!=null && inbox.isOpen();
+    }
+
+    public boolean hasIdle() throws MessagingException
+    {
+        return store.hasCapability(IDLE);
+    }
+
+    public boolean hasCondStore()
+    {
+        return condstore;
+    }
+
+    /**
+     * @return the HIGHESTMODSEQ reported when the folder was selected, or 0
+     */
+    public long getSelectModSeq()
+    {
+        return selectModSeq;
+    }
+
+    /**
+     * Asks only for the messages whose flags changed after the given
+     * modification sequence, with {@code UID FETCH 1:n (FLAGS) (CHANGEDSINCE m)}.
+     *
+     * @param lastUid the highest UID already seen
+     * @param modSeq the highest modification sequence already seen
+     * @return the changed messages, their flags and MODSEQ are already fetched
+     * @throws MessagingException
+     */
+    public Message[] getChangedSince(long lastUid, long modSeq) throws MessagingException
+    {
+        if(!condstore || lastUid<=0 || modSeq<=0)
+        {
+            return new Message[0];
+        }
+        return folder.getMessagesByUIDChangedSince(1, lastUid, modSeq);
+    }
+
+    /**
+     * @return the UIDs expunged since the last call, only reported by servers
+     * with QRESYNC
+     */
+    public long[] pollVanished()
+    {
+        ArrayList<Long> list = new ArrayList<>();
+        for(Long uid; (uid=vanished.poll())!=null;)
+        {
+            list.add(uid);
+        }
+        long[] uids = new long[list.size()];
+        for(int i=0;i<uids.length;i++)
+        {
+            uids[i] = list.get(i);
+        }
+        return uids;
+    }
+
+    private void addVanished(MessageVanishedEvent event)
+    {
+        for(long uid : event.getUIDs())
+        {
+            vanished.add(uid);
+        }
+    }
+
+    public long getUIDValidity() throws MessagingException
+    {
+        return folder.getUIDValidity();
+    }
+
+    public long getUID(Message message) throws MessagingException
+    {
+        return folder.getUID(message);
+    }
+
+    /**
+     * @return the highest UID currently in the folder, or 0 if it's empty
+     * @throws MessagingException
+     */
+    public long getLastUID() throws MessagingException
+    {
+        return Math.max(0, folder.getUIDNext()-1);
+    }
+
+    /**
+     * Fetches only the messages that arrived after the given UID, with a
+     * single {@code UID FETCH n+1:*}.
+     *
+     * @param lastUid the highest UID already seen
+     * @return the new messages sorted by UID
+     * @throws MessagingException
+     */
+    public Message[] getMessagesAfter(long lastUid) throws MessagingException
+    {
+        ArrayList<Message> list = new ArrayList<>();
+        // n+1:* always includes the last message, even when its UID is lower
+        for(Message item : folder.getMessagesByUID(lastUid+1, UIDFolder.LASTUID))
+        {
+            if(item!=null && folder.getUID(item)>lastUid)
+            {
+                list.add(item);
+            }
+        }
+        return list.toArray(new Message[0]);
+    }
+
+    /**
+     * Runs the SEARCH on the server, so only the matching messages travel.
+     *
+     * @param term what to look for
+     * @return the matching messages
+     * @throws MessagingException
+     */
+    public Message[] search(SearchTerm term) throws MessagingException
+    {
+        return folder.search(term);
+    }
+
+    /**
+     * Runs the SEARCH on the server but restricted to the given messages.
+     *
+     * @param term what to look for
+     * @param messages where to look for
+     * @return the matching messages
+     * @throws MessagingException
+     */
+    public Message[] search(SearchTerm term, Message[] messages) throws MessagingException
+    {
+        return messages.length>0 ? folder.search(term, messages) : messages;
+    }
+
+    /**
+     * Loads ENVELOPE, INTERNALDATE and UID of all the messages with a single
+     * FETCH, otherwise every getFrom(), getSubject() or getReceivedDate() may
+     * cost its own round-trip.
+     *
+     * @param messages the candidate messages
+     * @throws MessagingException
+     */
+    public void fetchEnvelopes(Message[] messages) throws MessagingException
+    {
+        if(messages.length>0)
+        {
+            folder.fetch(messages, ENVELOPE_PROFILE);
+        }
+    }
+
+    /**
+     * Loads the complete messages with a single {@code FETCH (BODY.PEEK[])},
+     * the bodies are cached and getContent() doesn't go back to the server.
+     *
+     * @param messages the messages to be read
+     * @throws MessagingException
+     */
+    public void fetchMessages(Message[] messages) throws MessagingException
+    {
+        if(messages.length>0)
+        {
+            folder.fetch(messages, MESSAGE_PROFILE);
+        }
+    }
+
+    /**
+     * @param uids the UIDs to look for
+     * @return the messages that still exist with those UIDs
+     * @throws MessagingException
+     */
+    public Message[] getMessagesByUID(long[] uids) throws MessagingException
+    {
+        ArrayList<Message> list = new ArrayList<>();
+        for(Message item : folder.getMessagesByUID(uids))
+        {
+            if(item!=null && !item.isExpunged())
+            {
+                list.add(item);
+            }
+        }
+        return list.toArray(new Message[0]);
+    }
+
+    /**
+     * Moves the messages to another folder, created if needed, with a single
+     * {@code UID MOVE} (RFC 6851) or {@code UID COPY} followed by an EXPUNGE
+     * when the server lacks MOVE.
+     *
+     * @param messages the messages to move
+     * @param name the destination folder
+     * @throws MessagingException
+     */
+    public void moveTo(Message[] messages, String name) throws MessagingException
+    {
+        if(messages.length==0)
+        {
+            return;
+        }
+        IMAPFolder target = (IMAPFolder) store.getFolder(name);
+        if(!target.exists())
+        {
+            target.create(Folder.HOLDS_MESSAGES);
+        }
+        if(store.hasCapability(MOVE))
+        {
+            folder.moveMessages(messages, target);
+        }
+        else
+        {
+            folder.copyMessages(messages, target);
+            delete(messages);
+        }
+    }
+
+    /**
+     * Flags the messages as \Deleted and expunges them, only them with
+     * {@code UID EXPUNGE} when the server has UIDPLUS (RFC 4315).
+     *
+     * @param messages the messages to delete
+     * @throws MessagingException
+     */
+    public void delete(Message[] messages) throws MessagingException
+    {
+        if(messages.length==0)
+        {
+            return;
+        }
+        folder.setFlags(messages, new Flags(Flags.Flag.DELETED), true);
+        if(store.hasCapability(UIDPLUS))
+        {
+            folder.expunge(messages);
+        }
+        else
+        {
+            // also removes any other message already flagged \Deleted, as any client would
+            folder.expunge();
+        }
+    }
+
+    /**
+     * Blocks until the server notifies a change in the mailbox (EXISTS,
+     * EXPUNGE, FETCH), {@link #wakeup()} is called, or the IDLE renewal time
+     * expires. It returns at once if {@link #wakeup()} was called since the
+     * last idle, the server already told that one what changed.
+     *
+     * @throws MessagingException
+     */
+    public void idle() throws MessagingException
+    {
+        if(woken.getAndSet(false))
+        {
+            return;
+        }
+        ScheduledFuture<?> renew = TIMER.schedule(this::noop, IDLE_MILLIS, TimeUnit.MILLISECONDS);
+        try
+        {
+            folder.idle(true);
+        }
+        finally
+        {
+            renew.cancel(false);
+            woken.set(false);
+        }
+    }
+
+    /**
+     * Aborts a running {@link #idle()}, any command issued from another thread
+     * makes the folder send DONE to the server.
+     */
+    public void wakeup()
+    {
+        woken.set(true);
+        noop();
+    }
+
+    private void noop()
+    {
+        IMAPFolder inbox = this.folder;
+        if(inbox!=null && inbox.isOpen())
+        {
+            try
+            {
+                inbox.doCommand((p) ->
+                {
+                    p.noop();
+                    return null;
+                });
+            }
+            catch (MessagingException ex)
+            {
+                System.getLogger(ImapInbox.class.getName()).log(System.Logger.Level.DEBUG, (String) null, ex);
+            }
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        IMAPFolder inbox = this.folder;
+        IMAPStore imapStore = this.store;
+        this.folder = null;
+        this.store = null;
+        try
+        {
+            if(inbox!=null && inbox.isOpen())
+            {
+                inbox.close(false);
+            }
+            if(imapStore!=null)
+            {
+                imapStore.close();
+            }
+        }
+        catch (MessagingException ex)
+        {
+            System.getLogger(ImapInbox.class.getName()).log(System.Logger.Level.DEBUG, (String) null, ex);
+        }
+    }
+}
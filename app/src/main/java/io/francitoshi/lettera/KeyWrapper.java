@@ -22,33 +22,352 @@ package io.francitoshi.lettera;
 
 import io.nut.base.crypto.SecureWrapper;
 import io.nut.base.util.Byter;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 
+/**
+ * Wraps the email and gpg passwords with a key derived from the master
+ * passphrase for each purpose and name. With a ttl the derived keys and the
+ * unwrapped passwords are kept for a while, a busy chat derives and unwraps
+ * once per ttl instead of once per note.
+ *
+ * @author franci
+ */
 public class KeyWrapper
 {
+    /**
+     * Marks what this class wraps itself, without it a value was wrapped by
+     * {@link SecureWrapper} and is still read with it until the next rekey.
+     */
+    static final String PREFIX = "k1:";
+    private static final String CIPHER = "AES/GCM/NoPadding";
+    private static final String HMAC = "HmacSHA512";
+    private static final int KEY_BYTES = 32;
+    private static final int NONCE_BYTES = 12;
+    private static final int TAG_BITS = 128;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor((r) ->
+    {
+        Thread th = new Thread(r, "KeyWrapperTimer");
+        th.setDaemon(true);
+        return th;
+    });
+
+    /**
+     * A derived key that can be wiped, SecretKeySpec can't.
+     */
+    private static class Subkey implements SecretKey
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] key;
+        final long expires;
+
+        Subkey(byte[] key, long expires)
+        {
+            this.key = key;
+            this.expires = expires;
+        }
+
+        @Override
+        public String getAlgorithm()
+        {
+            return "AES";
+        }
+
+        @Override
+        public String getFormat()
+        {
+            return "RAW";
+        }
+
+        @Override
+        public byte[] getEncoded()
+        {
+            return key.clone();
+        }
+
+        @Override
+        public void destroy()
+        {
+            Arrays.fill(key, (byte)0);
+        }
+    }
+
+    private static class Unwrapped
+    {
+        final char[] password;
+        final long expires;
+
+        Unwrapped(char[] password, long expires)
+        {
+            this.password = password;
+            this.expires = expires;
+        }
+    }
+
     private final SecureWrapper wrapper;
+    private final byte[] seed;
+    private final long ttlMillis;
+    private final Map<String, Unwrapped> cache = new HashMap<>();
+    private final Map<String, Subkey> subkeys = new HashMap<>();
+    private ScheduledFuture<?> sweeper;
 
-    public KeyWrapper(SecureWrapper wrapper)
+    public KeyWrapper(SecureWrapper wrapper, byte[] seed)
+    {
+        this(wrapper, seed, 0);
+    }
+
+    /**
+     * @param wrapper reads what was wrapped before the derived keys
+     * @param seed the master key the derived keys come from
+     * @param ttlMillis how long a derived key or an unwrapped password is kept
+     * in memory to save the work of the next note, 0 to redo it every time
+     */
+    public KeyWrapper(SecureWrapper wrapper, byte[] seed, long ttlMillis)
     {
         this.wrapper = wrapper;
+        this.seed = seed.clone();
+        this.ttlMillis = Math.max(0, ttlMillis);
     }
     
     public String wrapKey(String purpose, String name, char[] password)
     {
         String purposeName = purpose+"+"+name;
         byte[] pass = Byter.bytesUTF8(password);
-        String wrapped = wrapper.wrap(pass, purposeName);
-        Arrays.fill(pass, (byte)0);
-        return wrapped;
+        Subkey subkey = getSubkey(purposeName);
+        try
+        {
+            byte[] nonce = new byte[NONCE_BYTES];
+            RANDOM.nextBytes(nonce);
+            Cipher cipher = Cipher.getInstance(CIPHER);
+            cipher.init(Cipher.ENCRYPT_MODE, subkey, new GCMParameterSpec(TAG_BITS, nonce));
+            cipher.updateAAD(purposeName.getBytes(StandardCharsets.UTF_8));
+            byte[] sealed = cipher.doFinal(pass);
+            byte[] data = Arrays.copyOf(nonce, NONCE_BYTES+sealed.length);
+            System.arraycopy(sealed, 0, data, NONCE_BYTES, sealed.length);
+            return PREFIX+Base64.getEncoder().encodeToString(data);
+        }
+        catch (GeneralSecurityException ex)
+        {
+            throw new IllegalStateException(ex);
+        }
+        finally
+        {
+            Arrays.fill(pass, (byte)0);
+            subkey.destroy();
+        }
     }
     
+    /**
+     * @return a copy the caller owns and should wipe
+     */
     public char[] unwrapKey(String purpose, String name, String wrapped)
     {
         String purposeName = purpose+"+"+name;
-        byte[] pass = wrapper.unwrap(wrapped, purposeName);
+        if(ttlMillis==0)
+        {
+            return unwrap(purposeName, wrapped);
+        }
+        // the wrapped value is part of the key, a changed password is never served stale
+        String key = purposeName+"\n"+wrapped;
+        long now = System.currentTimeMillis();
+        synchronized (cache)
+        {
+            Unwrapped item = cache.get(key);
+            if(item!=null && item.expires>now)
+            {
+                return item.password.clone();
+            }
+        }
+        char[] password = unwrap(purposeName, wrapped);
+        synchronized (cache)
+        {
+            Unwrapped old = cache.put(key, new Unwrapped(password.clone(), now+ttlMillis));
+            if(old!=null)
+            {
+                Arrays.fill(old.password, '\0');
+            }
+            schedule();
+        }
+        return password;
+    }
+
+    private char[] unwrap(String purposeName, String wrapped)
+    {
+        byte[] pass = wrapped.startsWith(PREFIX) ? open(purposeName, wrapped.substring(PREFIX.length())) : wrapper.unwrap(wrapped, purposeName);
         char[] password = Byter.charsUTF8(pass);
         Arrays.fill(pass, (byte)0);
         return password;
     }
-    
+
+    private byte[] open(String purposeName, String wrapped)
+    {
+        byte[] data = Base64.getDecoder().decode(wrapped);
+        Subkey subkey = getSubkey(purposeName);
+        try
+        {
+            Cipher cipher = Cipher.getInstance(CIPHER);
+            cipher.init(Cipher.DECRYPT_MODE, subkey, new GCMParameterSpec(TAG_BITS, data, 0, NONCE_BYTES));
+            cipher.updateAAD(purposeName.getBytes(StandardCharsets.UTF_8));
+            return cipher.doFinal(data, NONCE_BYTES, data.length-NONCE_BYTES);
+        }
+        catch (GeneralSecurityException ex)
+        {
+            throw new IllegalStateException("can't unwrap "+purposeName, ex);
+        }
+        finally
+        {
+            subkey.destroy();
+        }
+    }
+
+    /**
+     * @return a copy of the key for this purpose and name the caller wipes,
+     * the sweep or lock() can wipe the cached one meanwhile
+     */
+    private Subkey getSubkey(String purposeName)
+    {
+        long now = System.currentTimeMillis();
+        if(ttlMillis>0)
+        {
+            synchronized (cache)
+            {
+                Subkey item = subkeys.get(purposeName);
+                if(item!=null && item.expires>now)
+                {
+                    return new Subkey(item.getEncoded(), item.expires);
+                }
+            }
+        }
+        Subkey subkey = new Subkey(derive(seed, purposeName), now+ttlMillis);
+        if(ttlMillis>0)
+        {
+            synchronized (cache)
+            {
+                Subkey old = subkeys.put(purposeName, new Subkey(subkey.getEncoded(), subkey.expires));
+                if(old!=null)
+                {
+                    old.destroy();
+                }
+                schedule();
+            }
+        }
+        return subkey;
+    }
+
+    /**
+     * HKDF-SHA512 (RFC 5869) without salt, the purpose and name are the info.
+     */
+    static byte[] derive(byte[] seed, String purposeName)
+    {
+        try
+        {
+            Mac mac = Mac.getInstance(HMAC);
+            mac.init(new SecretKeySpec(new byte[mac.getMacLength()], HMAC));
+            byte[] prk = mac.doFinal(seed);
+            mac.init(new SecretKeySpec(prk, HMAC));
+            Arrays.fill(prk, (byte)0);
+            mac.update(purposeName.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte)1);
+            byte[] okm = mac.doFinal();
+            byte[] key = Arrays.copyOf(okm, KEY_BYTES);
+            Arrays.fill(okm, (byte)0);
+            return key;
+        }
+        catch (GeneralSecurityException ex)
+        {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private void schedule()
+    {
+        if(sweeper==null)
+        {
+            sweeper = TIMER.scheduleWithFixedDelay(this::sweep, ttlMillis, ttlMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Wipes the expired keys and passwords, the timer stops once there are
+     * none.
+     */
+    private void sweep()
+    {
+        long now = System.currentTimeMillis();
+        synchronized (cache)
+        {
+            for(Iterator<Unwrapped> it = cache.values().iterator(); it.hasNext();)
+            {
+                Unwrapped item = it.next();
+                if(item.expires<=now)
+                {
+                    Arrays.fill(item.password, '\0');
+                    it.remove();
+                }
+            }
+            for(Iterator<Subkey> it = subkeys.values().iterator(); it.hasNext();)
+            {
+                Subkey item = it.next();
+                if(item.expires<=now)
+                {
+                    item.destroy();
+                    it.remove();
+                }
+            }
+            if(cache.isEmpty() && subkeys.isEmpty() && sweeper!=null)
+            {
+                sweeper.cancel(false);
+                sweeper = null;
+            }
+        }
+    }
+
+    /**
+     * Wipes every cached key and password now, the next note derives and
+     * unwraps again.
+     */
+    public void lock()
+    {
+        ArrayList<Unwrapped> list;
+        ArrayList<Subkey> keys;
+        synchronized (cache)
+        {
+            list = new ArrayList<>(cache.values());
+            keys = new ArrayList<>(subkeys.values());
+            cache.clear();
+            subkeys.clear();
+            if(sweeper!=null)
+            {
+                sweeper.cancel(false);
+                sweeper = null;
+            }
+        }
+        for(Unwrapped item : list)
+        {
+            Arrays.fill(item.password, '\0');
+        }
+        for(Subkey item : keys)
+        {
+            item.destroy();
+        }
+    }
 }
@@ -0,0 +1,236 @@
+/*
+ *  KeyringIndex.java
+ *
+ *  Copyright (c) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ */
+package io.francitoshi.lettera;
+
+import io.nut.base.crypto.gpg.GPG;
+import io.nut.base.crypto.gpg.MainKey;
+import io.nut.base.crypto.gpg.PubKey;
+import io.nut.base.crypto.gpg.SecKey;
+import io.nut.base.crypto.gpg.SubKey;
+import io.nut.base.crypto.gpg.UserId;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.IntFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The keys listed by gpg, kept in memory and indexed by fingerprint, key id
+ * and email. gpg is asked again only when the files of the keyring change,
+ * so listing, counting and looking up keys costs no process most of the time.
+ *
+ * @author franci
+ */
+public class KeyringIndex
+{
+    static final Pattern EMAIL_PATTERN1 = Pattern.compile(".*<(.+@.+)>.*");
+    static final Pattern EMAIL_PATTERN2 = Pattern.compile("([^<>]+@[^<>]+)");
+    // what gpg writes when a key is added, changed, trusted or deleted
+    private static final String[] FILES = {"pubring.kbx", "pubring.gpg", "secring.gpg", "trustdb.gpg", "private-keys-v1.d"};
+
+    private static class Index<K extends MainKey>
+    {
+        final long[] stamp;
+        final K[] keys;
+        final Map<String, List<K>> byFingerprint = new HashMap<>();
+        final Map<String, List<K>> byKeyid = new HashMap<>();
+        final Map<String, List<K>> byEmail = new HashMap<>();
+
+        Index(long[] stamp, K[] keys)
+        {
+            this.stamp = stamp;
+            this.keys = keys;
+            for(K key : keys)
+            {
+                SubKey main = key.getMain();
+                SubKey[] subKeys = key.getSubKeys();
+                ArrayList<SubKey> all = new ArrayList<>();
+                all.add(main);
+                all.addAll(Arrays.asList(subKeys!=null ? subKeys : new SubKey[0]));
+                for(SubKey item : all)
+                {
+                    if(item!=null)
+                    {
+                        add(byFingerprint, item.getFingerprint(), key);
+                        add(byKeyid, item.keyid, key);
+                    }
+                }
+                UserId[] uids = key.getUids();
+                for(UserId item : uids!=null ? uids : new UserId[0])
+                {
+                    add(byEmail, getEmail(item.uid), key);
+                }
+            }
+        }
+
+        private void add(Map<String, List<K>> map, String value, K key)
+        {
+            if(value!=null)
+            {
+                List<K> list = map.computeIfAbsent(value.toLowerCase(Locale.ROOT), (k) -> new ArrayList<>());
+                if(!list.contains(key))
+                {
+                    list.add(key);
+                }
+            }
+        }
+
+        /**
+         * @param filter fingerprints, key ids, emails or any part of a user
+         * id, like the patterns of gpg
+         * @return the keys matching any of them, in keyring order
+         */
+        K[] get(IntFunction<K[]> array, String... filter)
+        {
+            if(filter.length==0)
+            {
+                return keys.clone();
+            }
+            Set<K> found = Collections.newSetFromMap(new IdentityHashMap<>());
+            for(String item : filter)
+            {
+                String value = item.toLowerCase(Locale.ROOT);
+                String hex = value.startsWith("0x") ? value.substring(2) : value;
+                List<K> list = byFingerprint.get(hex);
+                list = list!=null ? list : byKeyid.get(hex);
+                list = list!=null ? list : byEmail.get(value);
+                if(list!=null)
+                {
+                    found.addAll(list);
+                    continue;
+                }
+                for(K key : keys)
+                {
+                    UserId[] uids = key.getUids();
+                    for(UserId uid : uids!=null ? uids : new UserId[0])
+                    {
+                        if(uid.uid!=null && uid.uid.toLowerCase(Locale.ROOT).contains(value))
+                        {
+                            found.add(key);
+                        }
+                    }
+                }
+            }
+            ArrayList<K> list = new ArrayList<>();
+            for(K key : keys)
+            {
+                if(found.contains(key))
+                {
+                    list.add(key);
+                }
+            }
+            return list.toArray(array.apply(0));
+        }
+    }
+
+    private final GPG gpg;
+    private final File home;
+    private volatile Index<SecKey> secs;
+    private volatile Index<PubKey> pubs;
+
+    /**
+     * @param gpg lists the keys
+     * @param home the GnuPG home directory, watched for changes
+     */
+    public KeyringIndex(GPG gpg, File home)
+    {
+        this.gpg = gpg;
+        this.home = home;
+    }
+
+    public SecKey[] getSecKeys(String... filter) throws IOException, InterruptedException
+    {
+        long[] stamp = getStamp();
+        Index<SecKey> index = secs;
+        if(index==null || !Arrays.equals(index.stamp, stamp))
+        {
+            secs = index = new Index<>(stamp, gpg.getSecKeys());
+        }
+        return index.get(SecKey[]::new, filter);
+    }
+
+    public PubKey[] getPubKeys(String... filter) throws IOException, InterruptedException
+    {
+        long[] stamp = getStamp();
+        Index<PubKey> index = pubs;
+        if(index==null || !Arrays.equals(index.stamp, stamp))
+        {
+            pubs = index = new Index<>(stamp, gpg.getPubKeys());
+        }
+        return index.get(PubKey[]::new, filter);
+    }
+
+    /**
+     * Forgets everything, the next call lists the keys again.
+     */
+    public void invalidate()
+    {
+        secs = null;
+        pubs = null;
+    }
+
+    /**
+     * @return the modification time and length of every keyring file, taken
+     * before listing so a change during the listing is seen next time
+     */
+    private long[] getStamp()
+    {
+        long[] stamp = new long[FILES.length*2];
+        for(int i=0;i<FILES.length;i++)
+        {
+            File file = new File(home, FILES[i]);
+            stamp[i*2] = file.lastModified();
+            stamp[i*2+1] = file.length();
+        }
+        return stamp;
+    }
+
+    /**
+     * @return the address of a user id like "Name &lt;address&gt;", or null
+     */
+    static String getEmail(String uid)
+    {
+        if(uid==null)
+        {
+            return null;
+        }
+        Matcher m1 = EMAIL_PATTERN1.matcher(uid);
+        if(m1.matches())
+        {
+            return m1.group(1);
+        }
+        Matcher m2 = EMAIL_PATTERN2.matcher(uid);
+        if(m2.matches())
+        {
+            return m2.group(1);
+        }
+        return null;
+    }
+}
@@ -35,18 +35,30 @@ import io.nut.base.encoding.Ascii85;
 import io.nut.base.encoding.Base64DecoderException;
 import io.nut.base.security.SecureChars;
 import io.nut.base.text.Table;
+import io.nut.base.time.JavaTime;
 import io.nut.base.util.concurrent.hive.Bee;
 import io.nut.base.util.concurrent.hive.Hive;
 import jakarta.mail.MessagingException;
+import jakarta.mail.SendFailedException;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import org.jline.utils.AttributedString;
 
@@ -54,12 +66,20 @@ public class Lettera extends Bee<Note> implements AutoCloseable
 {
     public static final String GPG_PURPOSE = "gpg";
     public static final Charset UTF8 = StandardCharsets.UTF_8;
-    public static final int LOOP_MILLIS = 15_000;
+    // how many of the last notes of a chat are searched for dictionary texts
+    static final int DICTIONARY_SCAN = 256;
+    // the keystore and config of a rekey before they replace the current ones
+    static final String REKEY_SUFFIX = ".new";
     public static final String HR = "----------------------------------------";
     
     static final Kripto KRIPTO = Kripto.getInstance(false);
     static final Rand RAND = Kripto.getRand();
     static final GPG GPG = new GPG().setArmor(true);
+    // PGP/MIME carries the ciphertext in a MIME part, no need for armor
+    static final GPG GPG_BINARY = new GPG().setArmor(false);
+    static final PgpEngine GPG_ENGINE = new GpgEngine(GPG, GPG_BINARY);
+    // listing thousands of keys takes gpg a while, it's only done again when they change
+    final KeyringIndex keyring = new KeyringIndex(GPG, BcPgpEngine.getDefaultHome());
     
     static final String DB = "db";
     
@@ -103,8 +123,14 @@ public class Lettera extends Bee<Note> implements AutoCloseable
     private volatile Map<Long, Note> currentNotes;
 
     private volatile Mode mode = Mode.ReadWrite;
+    private volatile boolean lazy;
+    private volatile Config config;
+    volatile PgpEngine pgp = GPG_ENGINE;
     private volatile MailPush mailPush;
     private volatile MailPoll mailPoll;
+    private final Map<String, MailPoll> mailPolls = new ConcurrentHashMap<>();
+    private final Map<String, SmtpPool> smtpPools = new ConcurrentHashMap<>();
+    private volatile Outbox outbox;
     volatile SessionHub sessionHub;
 
     final Hive hive = new Hive(Hive.CORES, Hive.CORES, Hive.CORES, 30_000);
@@ -121,33 +147,81 @@ public class Lettera extends Bee<Note> implements AutoCloseable
         this.console = System.console()!=null;
     }
     
+    /**
+     * For one-shot commands, open() builds only what sending and listing need
+     * and doesn't list the gpg keys.
+     */
+    public Lettera setLazy(boolean value)
+    {
+        this.lazy = value;
+        return this;
+    }
+
     public Lettera open() throws IOException, Base64DecoderException, InterruptedException, KeyStoreException, NoSuchAlgorithmException, CertificateException, Exception
     {
-        boolean firstTime = !configFile.exists() || !keystoreFile.exists();
-        Config config = Config.load(configFile);
-        if(config==null)
+        // listing the gpg keys needs no passphrase, it's done while the passphrase is typed and hashed
+        CompletableFuture<Void> keys = lazy ? CompletableFuture.completedFuture(null) : CompletableFuture.runAsync(() ->
         {
-            config = Config.createDefault(configFile);
-            firstTime = true;
+            try
+            {
+                loadAllKeys();
+            }
+            catch (IOException | InterruptedException ex)
+            {
+                throw new CompletionException(ex);
+            }
+        });
+        // a rekey that didn't finish is rolled back if the keystore wasn't
+        // moved yet, otherwise the config is moved too and the accounts follow
+        File newKeystoreFile = new File(keystoreFile.getPath()+REKEY_SUFFIX);
+        File newConfigFile = new File(configFile.getPath()+REKEY_SUFFIX);
+        boolean rollback = newKeystoreFile.exists();
+        if(!rollback && newConfigFile.exists())
+        {
+            Files.move(newConfigFile.toPath(), configFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
         }
+        boolean firstTime = !configFile.exists() || !keystoreFile.exists();
+        Config loaded = Config.load(configFile);
+        // a new config benchmarks Argon2 while the new passphrase is typed
+        CompletableFuture<Config> calibrated = loaded!=null ? CompletableFuture.completedFuture(loaded) : CompletableFuture.supplyAsync(() ->
+        {
+            try
+            {
+                return Config.createDefault(configFile);
+            }
+            catch (IOException | Base64DecoderException ex)
+            {
+                throw new CompletionException(ex);
+            }
+        });
+        firstTime |= loaded==null;
         
         if(passphrase==null)
         {
             passphrase = new SecureChars(firstTime ? PassphraseManager.createPassphrase(mock) : PassphraseManager.getPassphrase(mock));
         }
+        Config config = await(calibrated);
         long t0 = System.nanoTime();
+        this.config = config;
+        this.pgp = config.cryptoBackend==Config.CryptoBackend.BouncyCastle ? new BcPgpEngine(BcPgpEngine.getDefaultHome(), TimeUnit.SECONDS.toMillis(config.secretCacheSeconds)) : GPG_ENGINE;
         final Config finalConfig = config;
         byte[] seed = passphrase.apply((pass)-> ARGON2.rawHash(finalConfig.iterations, finalConfig.memoryKB, finalConfig.parallelism, pass, finalConfig.getSalt()));        
 
         long t1 = System.nanoTime();
+        long argon2Millis = TimeUnit.NANOSECONDS.toMillis(t1-t0);
         if(debug)
         {
-            this.out.printf("argon2 = %d ms\n", TimeUnit.NANOSECONDS.toMillis(t1-t0));
+            this.out.printf("argon2 = %d ms\n", argon2Millis);
+        }
+        else if(argon2Millis>3*config.argon2TargetMillis)
+        {
+            // a store copied from a faster machine, or created before calibration
+            this.out.printf("argon2 took %d ms, 'lettera rekey' calibrates it for this machine\n", argon2Millis);
         }
         
         passphraser = KRIPTO.getPassphraserHkdf(KRIPTO.getHkdfWithSha512(), seed, config.getSalt());
         ksm = KRIPTO.getKeyStoreManagerPKCS12(passphraser);
-        keyWrapper = new KeyWrapper(new SecureWrapper(KRIPTO, seed, Kripto.Hkdf.HkdfWithSha512));
+        keyWrapper = new KeyWrapper(new SecureWrapper(KRIPTO, seed, Kripto.Hkdf.HkdfWithSha512), seed, TimeUnit.SECONDS.toMillis(config.secretCacheSeconds));
         
         if(keystoreFile.exists())
         {        
@@ -172,10 +246,136 @@ public class Lettera extends Bee<Note> implements AutoCloseable
         }
         
         this.db = new LetteraDb(this.letteraDb, dbPass);
+        if(rollback)
+        {
+            db.getRekeyAccounts().clear();
+            db.commit();
+            Files.deleteIfExists(newKeystoreFile.toPath());
+            Files.deleteIfExists(newConfigFile.toPath());
+        }
+        else
+        {
+            finishRekey();
+        }
         
-        loadAllKeys();
+        await(keys);
         return this;
     }
+
+    /**
+     * Waits for a step of the startup running in the background.
+     *
+     * @throws Exception what the step threw
+     */
+    static <T> T await(CompletableFuture<T> step) throws Exception
+    {
+        try
+        {
+            return step.get();
+        }
+        catch (ExecutionException ex)
+        {
+            throw ex.getCause() instanceof Exception ? (Exception) ex.getCause() : ex;
+        }
+    }
+
+    /**
+     * Calibrates Argon2 again on this machine and moves the store to the new
+     * parameters and a new salt: the keystore is written again under the new
+     * master key and the account passwords are wrapped again. The new
+     * keystore and config are written aside and the new passwords kept apart
+     * from the old ones, the old ones are only replaced once both files are
+     * in place. An interruption anywhere is rolled back or finished by the
+     * next open(). Aims for the unlock time in the config.
+     *
+     * @return the new config
+     */
+    public Config rekey() throws IOException, KeyStoreException, NoSuchAlgorithmException, CertificateException, Exception
+    {
+        return rekey(config.argon2TargetMillis);
+    }
+
+    /**
+     * @param targetMillis the unlock time to aim for
+     * @return the new config
+     */
+    public Config rekey(long targetMillis) throws IOException, KeyStoreException, NoSuchAlgorithmException, CertificateException, Exception
+    {
+        Argon2Calibrator.Params params = new Argon2Calibrator().calibrate(targetMillis);
+        final Config newConfig = config.withArgon2(RAND.nextBytes(new byte[SALT_BYTES]), params, targetMillis);
+        byte[] seed = passphrase.apply((pass)-> ARGON2.rawHash(newConfig.iterations, newConfig.memoryKB, newConfig.parallelism, pass, newConfig.getSalt()));
+        Passphraser newPassphraser = KRIPTO.getPassphraserHkdf(KRIPTO.getHkdfWithSha512(), seed, newConfig.getSalt());
+        KeyStoreManager newKsm = KRIPTO.getKeyStoreManagerPKCS12(newPassphraser);
+        KeyWrapper newKeyWrapper = new KeyWrapper(new SecureWrapper(KRIPTO, seed, Kripto.Hkdf.HkdfWithSha512), seed, TimeUnit.SECONDS.toMillis(newConfig.secretCacheSeconds));
+
+        char[] dbPass = ksm.getPassphrase(DB);
+        newKsm.setPassphrase(DB, dbPass);
+        Arrays.fill(dbPass, '\0');
+
+        // while the new keystore is aside the rekey can only be rolled back
+        File newKeystoreFile = new File(keystoreFile.getPath()+REKEY_SUFFIX);
+        File newConfigFile = new File(configFile.getPath()+REKEY_SUFFIX);
+        newKsm.store(newKeystoreFile);
+        newConfig.storeArgon2(configFile, newConfigFile);
+
+        Map<String, Account> rekeyAccounts = db.getRekeyAccounts();
+        rekeyAccounts.clear();
+        for(Account item : db.getAccounts())
+        {
+            String emailPass = rewrap(newKeyWrapper, "email", item.name, item.emailPass);
+            String gpgPass = rewrap(newKeyWrapper, GPG_PURPOSE, item.name, item.gpgPass);
+            rekeyAccounts.put(item.name, new Account(item.name, item.address, item.auth, item.starttls, item.smtpHost, item.smtpPort, item.imapHost, item.imapPort, item.pop3Host, item.pop3Port, item.username, emailPass, item.keyid, gpgPass));
+        }
+        db.commit();
+        // once the keystore is moved the rekey can only be finished
+        Files.move(newKeystoreFile.toPath(), keystoreFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(newConfigFile.toPath(), configFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        finishRekey();
+
+        keyWrapper.lock();
+        this.keyWrapper = newKeyWrapper;
+        this.passphraser = newPassphraser;
+        this.ksm = newKsm;
+        this.config = newConfig;
+        return newConfig;
+    }
+
+    /**
+     * Replaces the accounts with the ones rewrapped by a rekey whose keystore
+     * and config are in place, again if it was interrupted in the middle.
+     */
+    private void finishRekey()
+    {
+        Map<String, Account> rekeyAccounts = db.getRekeyAccounts();
+        if(rekeyAccounts.isEmpty())
+        {
+            return;
+        }
+        for(Account item : rekeyAccounts.values())
+        {
+            db.putAccount(item);
+        }
+        db.commit();
+        rekeyAccounts.clear();
+        db.commit();
+    }
+
+    private String rewrap(KeyWrapper newKeyWrapper, String purpose, String name, String wrapped)
+    {
+        if(wrapped==null)
+        {
+            return null;
+        }
+        char[] password = keyWrapper.unwrapKey(purpose, name, wrapped);
+        try
+        {
+            return newKeyWrapper.wrapKey(purpose, name, password);
+        }
+        finally
+        {
+            Arrays.fill(password, '\0');
+        }
+    }
     
     public String startChat(String session, Mode mode)
     {
@@ -187,9 +387,23 @@ public class Lettera extends Bee<Note> implements AutoCloseable
 //666        verificar que no han cambiado las direcciones ni las keyid
                 
         currentAccount = db.getAccount(chat.accountName);
-        currentFriend = db.getFriend(chat.friendName);
-        
-        Chat chat2 = Chat.build(currentAccount, currentFriend, chat.mutualAuthProof);
+        Chat chat2;
+        if(chat instanceof GroupChat)
+        {
+            GroupChat group = (GroupChat) chat;
+            Friend[] members = new Friend[group.memberNames.length];
+            for(int i=0;i<members.length;i++)
+            {
+                members[i] = db.getFriend(group.memberNames[i]);
+            }
+            currentFriend = null;
+            chat2 = GroupChat.build(currentAccount, group.groupId, members);
+        }
+        else
+        {
+            currentFriend = db.getFriend(chat.friendName);
+            chat2 = Chat.build(currentAccount, currentFriend, chat.mutualAuthProof);
+        }
 
         if(!chat.equals(chat2))
         {
@@ -199,6 +413,7 @@ public class Lettera extends Bee<Note> implements AutoCloseable
         
         currentChat = chat;
         currentNotes = db.getNotes(session);
+        printFailed(chat);
         
         SecureChars secureEmailPass = new SecureChars(keyWrapper.unwrapKey("email", currentAccount.name, currentAccount.emailPass));
         SecureChars secureGpgPass = new SecureChars(keyWrapper.unwrapKey(GPG_PURPOSE, currentAccount.name, currentAccount.gpgPass));
@@ -206,17 +421,162 @@ public class Lettera extends Bee<Note> implements AutoCloseable
 //666        mailReader = new IMAP(currentAccount.imapHost, currentAccount.imapPort, currentAccount.auth, currentAccount.starttls, false, currentAccount.username, secureEmailPass);
 //666        smtp = new SMTP(currentAccount.smtpHost, currentAccount.smtpPort, currentAccount.auth, currentAccount.starttls, currentAccount.username, secureEmailPass, currentAccount.address);
 
-        this.mailPoll = mode.read ? new MailPoll(currentChat, currentAccount, currentFriend, keyWrapper, secureEmailPass, this).start() : null;
-        this.mailPush = mode.write? new MailPush(currentChat, currentAccount, currentFriend, keyWrapper, secureEmailPass, this) : null;
+        Outbox outbox = startOutbox();
+        // one receiver per account serves all its chats, switching chats reuses it
+        final Account account = currentAccount;
+        this.mailPoll = mode.read ? mailPolls.computeIfAbsent(account.name, (k) -> new MailPoll(account, keyWrapper, secureEmailPass, db, this, config.housekeeping, config.housekeepingFolder, outbox, pgp).start()) : null;
+        if(this.mailPush!=null)
+        {
+            this.mailPush.close();
+        }
+        this.mailPush = mode.write? new MailPush(currentChat, currentAccount, keyWrapper, getSmtpPool(currentAccount), outbox) : null;
 
         return chat.accountName;
     }
     
+    /**
+     * Shows once the notes of the chat the outbox gave up on, so they can be
+     * written again.
+     */
+    private void printFailed(Chat chat)
+    {
+        Map<Long, Note> failedNotes = db.getFailedOutbox();
+        for(Note note : failedNotes.values().toArray(new Note[0]))
+        {
+            if(note.session.equals(chat.id))
+            {
+                this.out.printf("not sent: %s\n", note.text);
+                failedNotes.remove(note.id);
+            }
+        }
+        db.commit();
+    }
+
+    private SmtpPool getSmtpPool(Account account)
+    {
+        return smtpPools.computeIfAbsent(account.name, (k) -> new SmtpPool(account, new SecureChars(keyWrapper.unwrapKey("email", account.name, account.emailPass))));
+    }
+
+    /**
+     * Sends notes of the outbox, whatever their chat, in a single mail.
+     */
+    private void sendNotes(List<Note> notes) throws MessagingException, InterruptedException, IOException
+    {
+        Chat chat = db.getChat(notes.get(0).session);
+        Account account = chat!=null ? db.getAccount(chat.accountName) : null;
+        if(account==null)
+        {
+            throw new SendFailedException("chat "+notes.get(0).session+" was deleted");
+        }
+        MailPush.sendNote(chat, account, keyWrapper, pgp, getSmtpPool(account), NoteBundle.encode(notes), NoteBundle.isBundle(notes), getDictionary(chat), getCodec(chat), config.pgpMime);
+    }
+
+    /**
+     * @return the notes to compress with, empty to compress without them and
+     * null to not compress because the friend's client can't decompress
+     */
+    private List<String> getDictionary(Chat chat)
+    {
+        if(chat instanceof GroupChat)
+        {
+            // members may run different clients and have joined at different times
+            return null;
+        }
+        String codec = db.getCodecIndex().get(chat.id);
+        if(!PayloadCodec.canDeflate(codec))
+        {
+            return null;
+        }
+        if(!PayloadCodec.canUseDictionary(codec))
+        {
+            return Collections.emptyList();
+        }
+        return PayloadCodec.getDictionary(db.getRecentNotes(chat.id, DICTIONARY_SCAN), chat.friendAddress);
+    }
+
+    /**
+     * @return what this side decodes, the dictionaries no more once a note of
+     * the chat came with one this history doesn't have
+     */
+    private String getCodec(Chat chat)
+    {
+        return PayloadCodec.getCapabilities(!db.getDictionaryMisses().containsKey(chat.id));
+    }
+
+    /**
+     * Keeps a note sent without the outbox, it's part of the history and of
+     * the dictionaries the friend may compress with.
+     */
+    private void storeSent(Chat chat, String text)
+    {
+        Note note = new Note(Note.NONCE.get(), JavaTime.epochSecond(), chat.id, chat.accountAddress, chat.friendAddress, chat.accountKeyid, chat.friendKeyid, 0, 0, text);
+        note.setSent(JavaTime.epochSecond());
+        db.getNotes(chat.id).put(note.id, note);
+    }
+
+    /**
+     * Starts the outbox once, what was left unsent last time goes out now.
+     * It's started by the first chat, the one-shot commands and the agent,
+     * once the network is ready.
+     */
+    synchronized Outbox startOutbox()
+    {
+        if(this.outbox==null)
+        {
+            this.outbox = new Outbox(db, this::sendNotes, this, config.coalesceMillis).start();
+        }
+        return this.outbox;
+    }
+
     public void send(String text) throws MessagingException, InterruptedException, IOException
     {
-        this.mailPush.sendNote(text);
+        // the notes left from the last run go first
+        startOutbox().drain();
+        MailPush.sendNote(currentChat, currentAccount, keyWrapper, pgp, getSmtpPool(currentAccount), text, false, getDictionary(currentChat), getCodec(currentChat), config.pgpMime);
+        storeSent(currentChat, text);
+        db.commit();
+        if(this.mailPoll!=null)
+        {
+            this.mailPoll.sync();
+        }
     }
         
+    /**
+     * Sends every text to the current chat through the encrypt and SMTP
+     * pipeline of BulkSender and prints the result of each one.
+     *
+     * @param texts the notes to send, read as they are needed
+     * @return how many couldn't be sent
+     * @throws InterruptedException
+     */
+    public int sendAll(Iterator<String> texts) throws InterruptedException
+    {
+        return sendAll(texts, this.out);
+    }
+
+    public int sendAll(Iterator<String> texts, PrintStream out) throws InterruptedException
+    {
+        // the notes left from the last run go first, before a one-shot command exits
+        startOutbox().drain();
+        BulkSender bulk = new BulkSender(currentChat, currentAccount, keyWrapper, pgp, getSmtpPool(currentAccount), getDictionary(currentChat), getCodec(currentChat), config.pgpMime);
+        int[] count = new int[2];
+        out.println(HR);
+        bulk.send(texts, (item) ->
+        {
+            // printed and kept as they come, the input may never end
+            out.printf("%d\t%d ms\t%s\n", item.index+1, item.millis, item.isSent() ? "sent" : "FAILED "+item.error);
+            count[item.isSent() ? 0 : 1]++;
+            if(item.isSent())
+            {
+                storeSent(currentChat, item.text);
+            }
+        });
+        db.commit();
+        out.println(HR);
+        out.println("Sent: "+count[0]+" Failed: "+count[1]);
+        return count[1];
+    }
+
     public static String stripAnsi(String input)
     {
         if (input == null || input.isEmpty())
@@ -231,8 +591,8 @@ public class Lettera extends Bee<Note> implements AutoCloseable
 
     void loadAllKeys() throws IOException, InterruptedException
     {
-        secs = GPG.getSecKeys();
-        pubs = GPG.getPubKeys();
+        secs = keyring.getSecKeys();
+        pubs = keyring.getPubKeys();
     }
     
     public int countAccounts()
@@ -246,14 +606,19 @@ public class Lettera extends Bee<Note> implements AutoCloseable
 
     public int countSecKeys() throws IOException, InterruptedException
     {
-        return GPG.getSecKeys().length;
+        return keyring.getSecKeys().length;
     }
     public int countPubKeys() throws IOException, InterruptedException
     {
-        return GPG.getPubKeys().length;
+        return keyring.getPubKeys().length;
     }
     
     public int listAccounts()
+    {
+        return listAccounts(this.out);
+    }
+
+    public int listAccounts(PrintStream out)
     {
         Account[] items = db.getAccounts();
         Table table = new Table(items.length, 3, false);
@@ -263,13 +628,18 @@ public class Lettera extends Bee<Note> implements AutoCloseable
             table.setCell(r,1, items[r].address);
             table.setCell(r,2, items[r].keyid);
         }
-        this.out.println(HR);
-        this.out.println("Accounts: "+items.length);
-        this.out.println(table.toString());
+        out.println(HR);
+        out.println("Accounts: "+items.length);
+        out.println(table.toString());
         return items.length;
     }
 
     public int listFriends()
+    {
+        return listFriends(this.out);
+    }
+
+    public int listFriends(PrintStream out)
     {
         Friend[] items = db.getFriends();
         Table table = new Table(items.length, 3, false);
@@ -279,13 +649,18 @@ public class Lettera extends Bee<Note> implements AutoCloseable
             table.setCell(r,1, items[r].address);
             table.setCell(r,2, items[r].keyid);
         }
-        this.out.println(HR);
-        this.out.println("Friends: "+items.length);
-        this.out.println(table.toString());
+        out.println(HR);
+        out.println("Friends: "+items.length);
+        out.println(table.toString());
         return items.length;
     }
 
     public int listChats()
+    {
+        return listChats(this.out);
+    }
+
+    public int listChats(PrintStream out)
     {
         Chat[] items = db.getChats();
         Table table = new Table(items.length, 3, false);
@@ -295,25 +670,50 @@ public class Lettera extends Bee<Note> implements AutoCloseable
             table.setCell(r,1, items[r].accountAddress);
             table.setCell(r,2, items[r].friendAddress);
         }
-        this.out.println(HR);
-        this.out.println("Chats: "+items.length);
-        this.out.println(table.toString());
+        out.println(HR);
+        out.println("Chats: "+items.length);
+        out.println(table.toString());
         return items.length;
     }
 
+    /**
+     * Wipes the passwords and keys kept unlocked in memory, the next note
+     * unwraps and unlocks them again.
+     */
+    public void lock()
+    {
+        keyWrapper.lock();
+        pgp.lock();
+    }
+
     @Override
     public void close() throws Exception
     {
-        if(mailPoll!=null)
+        for(MailPoll item : mailPolls.values())
         {
-            mailPoll.close();
-            mailPoll = null;
+            item.close();
         }
+        mailPolls.clear();
+        mailPoll = null;
         if(mailPush!=null)
         {
             mailPush.close();
             mailPush = null;
         }
+        if(outbox!=null)
+        {
+            outbox.close();
+            outbox = null;
+        }
+        for(SmtpPool item : smtpPools.values())
+        {
+            item.close();
+        }
+        smtpPools.clear();
+        if(keyWrapper!=null)
+        {
+            lock();
+        }
         db.close();
     }
 
@@ -0,0 +1,428 @@
+/*
+ *  LetteraAgent.java
+ *
+ *  Copyright (c) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ */
+package io.francitoshi.lettera;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import jdk.net.ExtendedSocketOptions;
+import jdk.net.UnixDomainPrincipal;
+
+/**
+ * Keeps an unlocked Lettera in the background and serves the one-shot
+ * commands of the CLI over a Unix-domain socket in the lettera folder, so a
+ * cron job sending a note pays no Argon2, keystore, database or gpg listing,
+ * and reuses the warm SMTP connections. Only the user owning the socket is
+ * served. Once idle for a while the agent locks itself by closing Lettera
+ * and quitting, the next command falls back to a cold start.
+ * <p>
+ * The protocol is a request, the command, its chat and the network mode of
+ * the caller followed by the texts of the notes, and a reply with the output
+ * and the number of failures. Notes are only sent when the caller asked for
+ * the same network the agent was started with, a note meant for Tor never
+ * leaves directly.
+ *
+ * @author franci
+ */
+public class LetteraAgent implements AutoCloseable
+{
+    static final String SOCKET = "agent.sock";
+    static final long IDLE_MILLIS = 15 * 60_000;
+    private static final int VERSION = 2;
+    // a note, or the output of a command, a length beyond is a broken request
+    static final int MAX_STRING = 16*1024*1024;
+
+    static final String SEND = "send";
+    static final String LIST_ACCOUNTS = "list-accounts";
+    static final String LIST_FRIENDS = "list-friends";
+    static final String LIST_CHATS = "list-chats";
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor((r) ->
+    {
+        Thread th = new Thread(r, "LetteraAgentTimer");
+        th.setDaemon(true);
+        return th;
+    });
+
+    private final Lettera lettera;
+    private final Path socket;
+    private final String network;
+    private final long idleMillis;
+    private volatile ServerSocketChannel server;
+    private volatile long lastUsed = System.currentTimeMillis();
+    private volatile boolean busy;
+
+    /**
+     * @param network how the agent connects, "direct" or the proxy or Tor in
+     * use
+     */
+    public LetteraAgent(Lettera lettera, File socket, String network, long idleMillis)
+    {
+        this.lettera = lettera;
+        this.socket = socket.toPath();
+        this.network = network;
+        this.idleMillis = idleMillis;
+    }
+
+    /**
+     * Serves the commands one at a time until the agent is idle for too long
+     * or closed.
+     *
+     * @throws IOException if the socket can't be created or another agent is
+     * already serving it
+     */
+    public void run() throws IOException
+    {
+        if(isAlive(socket.toFile()))
+        {
+            throw new IOException("an agent is already running on "+socket);
+        }
+        // left behind by an agent that didn't quit cleanly
+        Files.deleteIfExists(socket);
+        server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        server.bind(UnixDomainSocketAddress.of(socket));
+        try
+        {
+            Files.setPosixFilePermissions(socket, EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE));
+        }
+        catch (UnsupportedOperationException ex)
+        {
+            // not a POSIX file system, the folder permissions have to do
+        }
+        UserPrincipal owner = Files.getOwner(socket);
+        // what was left unsent goes out while the agent waits for commands
+        lettera.startOutbox();
+        long period = Math.max(1000, Math.min(idleMillis, 60_000));
+        ScheduledFuture<?> idle = TIMER.scheduleWithFixedDelay(this::checkIdle, period, period, TimeUnit.MILLISECONDS);
+        try
+        {
+            while(true)
+            {
+                try(SocketChannel channel = server.accept())
+                {
+                    busy = true;
+                    if(isOwner(channel, owner))
+                    {
+                        serve(channel);
+                    }
+                }
+                catch (ClosedChannelException ex)
+                {
+                    break;
+                }
+                catch (IOException | RuntimeException ex)
+                {
+                    System.getLogger(LetteraAgent.class.getName()).log(System.Logger.Level.ERROR, (String) null, ex);
+                }
+                finally
+                {
+                    lastUsed = System.currentTimeMillis();
+                    busy = false;
+                }
+            }
+        }
+        finally
+        {
+            idle.cancel(false);
+            close();
+        }
+    }
+
+    private static boolean isOwner(SocketChannel channel, UserPrincipal owner) throws IOException
+    {
+        try
+        {
+            UnixDomainPrincipal peer = channel.getOption(ExtendedSocketOptions.SO_PEERCRED);
+            return peer.user().equals(owner);
+        }
+        catch (UnsupportedOperationException ex)
+        {
+            // no peer credentials on this platform, the socket permissions have to do
+            return true;
+        }
+    }
+
+    private void checkIdle()
+    {
+        if(!busy && System.currentTimeMillis()-lastUsed>=idleMillis)
+        {
+            close();
+        }
+    }
+
+    private void serve(SocketChannel channel) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+        int version;
+        try
+        {
+            version = in.readInt();
+        }
+        catch (EOFException ex)
+        {
+            // isAlive connects and leaves without a word
+            return;
+        }
+        if(version!=VERSION)
+        {
+            reply(out, "unsupported agent protocol\n", 1);
+            return;
+        }
+        String command = readString(in);
+        String chat = readString(in);
+        String callerNetwork = readString(in);
+        Iterator<String> texts = new Iterator<String>()
+        {
+            Boolean next;
+
+            @Override
+            public boolean hasNext()
+            {
+                try
+                {
+                    if(next==null)
+                    {
+                        next = in.readBoolean();
+                    }
+                    return next;
+                }
+                catch (IOException ex)
+                {
+                    throw new UncheckedIOException(ex);
+                }
+            }
+
+            @Override
+            public String next()
+            {
+                if(!hasNext())
+                {
+                    throw new NoSuchElementException();
+                }
+                next = null;
+                try
+                {
+                    return readString(in);
+                }
+                catch (IOException ex)
+                {
+                    throw new UncheckedIOException(ex);
+                }
+            }
+        };
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream print = new PrintStream(bytes, true, StandardCharsets.UTF_8);
+        int failed;
+        try
+        {
+            failed = execute(command, chat, callerNetwork, texts, print);
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            print.println(ex);
+            failed = 1;
+        }
+        // whatever the command didn't read is drained before replying
+        while(texts.hasNext())
+        {
+            texts.next();
+        }
+        reply(out, bytes.toString(StandardCharsets.UTF_8), failed);
+    }
+
+    private int execute(String command, String chat, String callerNetwork, Iterator<String> texts, PrintStream out) throws InterruptedException
+    {
+        switch(command)
+        {
+            case SEND:
+                if(!network.equals(callerNetwork))
+                {
+                    out.printf("the agent connects %s, not %s, stop it or send with the same options\n", network, callerNetwork);
+                    return 1;
+                }
+                if(lettera.startChat(chat, Lettera.Mode.Write)==null)
+                {
+                    out.printf("unknown chat '%s'\n", chat);
+                    return 1;
+                }
+                return lettera.sendAll(texts, out);
+            case LIST_ACCOUNTS:
+                lettera.listAccounts(out);
+                return 0;
+            case LIST_FRIENDS:
+                lettera.listFriends(out);
+                return 0;
+            case LIST_CHATS:
+                lettera.listChats(out);
+                return 0;
+            default:
+                out.printf("unknown command '%s'\n", command);
+                return 1;
+        }
+    }
+
+    private static void reply(DataOutputStream out, String output, int failed) throws IOException
+    {
+        writeString(out, output);
+        out.writeInt(failed);
+        out.flush();
+    }
+
+    /**
+     * @return true if an agent answers on the socket
+     */
+    static boolean isAlive(File socket)
+    {
+        if(!socket.exists())
+        {
+            return false;
+        }
+        try
+        {
+            // only whether someone answers matters
+            SocketChannel.open(UnixDomainSocketAddress.of(socket.toPath())).close();
+            return true;
+        }
+        catch (IOException ex)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Runs a command on the agent.
+     *
+     * @param socket the socket of the agent
+     * @param command SEND or one of the LIST commands
+     * @param chat the chat to send to, or null
+     * @param network how the notes have to leave, see
+     * {@link #LetteraAgent(Lettera, File, String, long)}
+     * @param texts the notes to send, read lazily, or null
+     * @param out where the output of the command is printed
+     * @return the number of failures, or null if no agent is running and the
+     * command is still to be done
+     * @throws IOException if the agent went away in the middle, the notes may
+     * or may not be sent
+     */
+    public static Integer call(File socket, String command, String chat, String network, Iterator<String> texts, PrintStream out) throws IOException
+    {
+        if(!socket.exists())
+        {
+            return null;
+        }
+        SocketChannel channel;
+        try
+        {
+            channel = SocketChannel.open(UnixDomainSocketAddress.of(socket.toPath()));
+        }
+        catch (IOException ex)
+        {
+            return null;
+        }
+        try(channel)
+        {
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            dos.writeInt(VERSION);
+            writeString(dos, command);
+            writeString(dos, chat!=null ? chat : "");
+            writeString(dos, network);
+            while(texts!=null && texts.hasNext())
+            {
+                dos.writeBoolean(true);
+                writeString(dos, texts.next());
+            }
+            dos.writeBoolean(false);
+            dos.flush();
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            out.print(readString(dis));
+            out.flush();
+            return dis.readInt();
+        }
+    }
+
+    // writeUTF can't hold more than 64 KiB, a note can
+    private static void writeString(DataOutputStream out, String value) throws IOException
+    {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException
+    {
+        int length = in.readInt();
+        if(length<0 || length>MAX_STRING)
+        {
+            throw new IOException("string of "+length+" bytes in the agent protocol");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Stops serving and removes the socket, Lettera is closed by its owner.
+     */
+    @Override
+    public void close()
+    {
+        ServerSocketChannel channel = server;
+        if(channel!=null)
+        {
+            try
+            {
+                channel.close();
+                Files.deleteIfExists(socket);
+            }
+            catch (IOException ex)
+            {
+                System.getLogger(LetteraAgent.class.getName()).log(System.Logger.Level.ERROR, (String) null, ex);
+            }
+        }
+    }
+}
@@ -23,7 +23,12 @@ package io.francitoshi.lettera;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import org.h2.mvstore.MVMap;
 import org.h2.mvstore.MVStore;
 
 /**
@@ -37,6 +42,9 @@ public class LetteraDb implements Closeable
     private final Map<String, Account> accounts;
     private final Map<String, Friend> friends;
     private final Map<String, Chat> chats;
+    private final Map<String, MailboxState> mailboxes;
+    private final Map<Long, Note> outbox;
+    private final ChatRouter router;
 
     public LetteraDb(File file, char[] passphrase)
     {
@@ -44,6 +52,9 @@ public class LetteraDb implements Closeable
         this.accounts = this.store.openMap("accounts");
         this.friends = this.store.openMap("friends");
         this.chats = this.store.openMap("chats");
+        this.mailboxes = this.store.openMap("mailboxes");
+        this.outbox = this.store.openMap("outbox");
+        this.router = new ChatRouter(this.chats.values().toArray(new Chat[0]));
     }
 
     @Override
@@ -113,7 +124,12 @@ public class LetteraDb implements Closeable
     {
         synchronized(lock)
         {
-            chats.put(value.id, value);
+            Chat old = chats.put(value.id, value);
+            if(old!=null)
+            {
+                router.remove(old);
+            }
+            router.put(value);
         }
     }
     public Chat getChat(String id)
@@ -124,6 +140,166 @@ public class LetteraDb implements Closeable
         }
     }
     
+    /**
+     * @return the routing index of incoming notes, kept up to date by putChat
+     */
+    public ChatRouter getRouter()
+    {
+        return router;
+    }
+    
+    public void putMailboxState(String name, String folder, MailboxState value)
+    {
+        synchronized(lock)
+        {
+            mailboxes.put(MailboxState.key(name, folder), value);
+        }
+    }
+    public MailboxState getMailboxState(String name, String folder)
+    {
+        synchronized(lock)
+        {
+            return mailboxes.get(MailboxState.key(name, folder));
+        }
+    }
+    
+    /**
+     * @return UID to note reference of the messages already ingested from a
+     * remote folder
+     */
+    public Map<Long, String> getMailIndex(String name, String folder)
+    {
+        synchronized(lock)
+        {
+            return this.store.openMap("mail-"+MailboxState.key(name, folder));
+        }
+    }
+    
+    /**
+     * @return UIDL to note reference of the messages already seen in a POP3
+     * maildrop, an empty reference if it wasn't a note
+     */
+    public Map<String, String> getUidlIndex(String name)
+    {
+        synchronized(lock)
+        {
+            return this.store.openMap("uidl-"+name);
+        }
+    }
+    
+    /**
+     * @return Message-ID, or a hash when there's none, to note reference of
+     * every mail already ingested for an account, whatever its UID
+     */
+    public Map<String, String> getReceivedIndex(String name)
+    {
+        synchronized(lock)
+        {
+            return this.store.openMap("received-"+name);
+        }
+    }
+    
+    /**
+     * @return UID to failed reads of the messages of a remote folder that may
+     * still be read, the checkpoint is already past them
+     */
+    public Map<Long, Integer> getRetryIndex(String name, String folder)
+    {
+        synchronized(lock)
+        {
+            return this.store.openMap("retry-"+MailboxState.key(name, folder));
+        }
+    }
+    
+    /**
+     * @return UIDL to failed reads of the messages of a POP3 maildrop that
+     * may still be read
+     */
+    public Map<String, Integer> getUidlRetryIndex(String name)
+    {
+        synchronized(lock)
+        {
+            return this.store.openMap("retry-uidl-"+name);
+        }
+    }
+    
+    /**
+     * @return the accounts with their passwords wrapped under the master key
+     * of a rekey, until its keystore and config are in place
+     */
+    public Map<String, Account> getRekeyAccounts()
+    {
+        synchronized(lock)
+        {
+            return this.store.openMap("rekey-accounts");
+        }
+    }
+    
+    /**
+     * @return chat id to the PayloadCodec.HEADER of the last note of the
+     * friend, what its client decodes
+     */
+    public Map<String, String> getCodecIndex()
+    {
+        synchronized(lock)
+        {
+            return this.store.openMap("codecs");
+        }
+    }
+    
+    /**
+     * @return the chats where a note came compressed with a dictionary this
+     * history doesn't have
+     */
+    public Map<String, Boolean> getDictionaryMisses()
+    {
+        synchronized(lock)
+        {
+            return this.store.openMap("dictionary-misses");
+        }
+    }
+    
+    /**
+     * Keeps a note until it's sent, so it survives a failure or a restart.
+     */
+    public void putOutbox(Note value)
+    {
+        synchronized(lock)
+        {
+            outbox.put(value.id, value);
+        }
+    }
+    public void removeOutbox(long id)
+    {
+        synchronized(lock)
+        {
+            outbox.remove(id);
+        }
+    }
+    /**
+     * @return the notes not sent yet, oldest first
+     */
+    public Note[] getOutbox()
+    {
+        synchronized(lock)
+        {
+            Note[] items = outbox.values().toArray(new Note[0]);
+            Arrays.sort(items);
+            return items;
+        }
+    }
+    
+    /**
+     * @return the notes the outbox gave up on, until the user sees them
+     */
+    public Map<Long, Note> getFailedOutbox()
+    {
+        synchronized(lock)
+        {
+            return this.store.openMap("outbox-failed");
+        }
+    }
+    
     public final void commit()
     {
         synchronized(lock)
@@ -140,4 +316,22 @@ public class LetteraDb implements Closeable
         }
     }
     
+    /**
+     * @return the last notes of a chat, oldest first
+     */
+    public List<Note> getRecentNotes(String id, int max)
+    {
+        synchronized(lock)
+        {
+            MVMap<Long, Note> notes = this.store.openMap("notes-"+id);
+            ArrayList<Note> list = new ArrayList<>();
+            for(Long key = notes.lastKey(); key!=null && list.size()<max; key = notes.lowerKey(key))
+            {
+                list.add(notes.get(key));
+            }
+            Collections.reverse(list);
+            return list;
+        }
+    }
+    
 }
@@ -21,117 +21,843 @@
 package io.francitoshi.lettera;
 
 import static io.francitoshi.lettera.Lettera.GPG_PURPOSE;
-import static io.francitoshi.lettera.Lettera.LOOP_MILLIS;
-import io.nut.base.crypto.gpg.GPG;
+import com.sun.mail.imap.IMAPMessage;
 import io.nut.base.security.SecureChars;
-import io.nut.base.util.Utils;
+import io.nut.base.time.JavaTime;
 import io.nut.base.util.concurrent.hive.Bee;
-import io.nut.core.net.mail.IMAP;
-import io.nut.core.net.mail.MailReader;
-import io.nut.core.net.mail.SMTP;
 import jakarta.mail.Address;
+import jakarta.mail.BodyPart;
+import jakarta.mail.Flags;
 import jakarta.mail.Message;
 import jakarta.mail.MessagingException;
+import jakarta.mail.Multipart;
+import jakarta.mail.Part;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.search.AndTerm;
+import jakarta.mail.search.RecipientStringTerm;
+import jakarta.mail.search.SearchTerm;
+import jakarta.mail.search.SubjectTerm;
 import java.awt.Toolkit;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Receives the notes of every chat of an account over a single IMAP
+ * connection, one fetch per cycle serves all of them. Accounts without IMAP
+ * are read over POP3.
+ */
 public class MailPoll implements Runnable
 {
-    private static final GPG GPG = Lettera.GPG;
+    // reads of a message failing for a reason that may go away, a locked key
+    // or a dropped connection, before giving up on it
+    static final int MAX_ATTEMPTS = 10;
+    // shown instead of a note compressed with notes this history doesn't have
+    static final String UNREADABLE = "[this note can't be read here, it was compressed with notes this device doesn't have]";
     
     private volatile boolean active;
-    private final Chat currentChat;
-    private final Account currentAccount;
-    private final Friend currentFriend;
+    private final Account account;
     private final KeyWrapper keyWrapper;
-//666    private final Map<Long, Note> currentNotes;
     private final SecureChars secureEmailPass;
+    private final LetteraDb db;
     
     private final Bee<Note> hub;
     private final Object lock = new Object();
-    private volatile int waitMillis = 0;
+    private final Config.Housekeeping housekeeping;
+    private final String housekeepingFolder;
+    private final boolean pop3;
+    private final Outbox outbox;
+    private final PgpEngine pgp;
+    private final PollScheduler scheduler;
+    private boolean synced;
+    private volatile ImapInbox inbox;
 
-    public MailPoll(Chat currentChat, Account currentAccount, Friend currentFriend, KeyWrapper keyWrapper, SecureChars secureEmailPass, Bee<Note> hub)
+    public MailPoll(Account account, KeyWrapper keyWrapper, SecureChars secureEmailPass, LetteraDb db, Bee<Note> hub)
     {
-        this.currentChat = currentChat;
-        this.currentAccount = currentAccount;
-        this.currentFriend = currentFriend;
+        this(account, keyWrapper, secureEmailPass, db, hub, Config.Housekeeping.None, null, null, Lettera.GPG_ENGINE);
+    }
+
+    /**
+     * @param housekeeping what to do with a mail once its note is stored
+     * @param housekeepingFolder where the mails are moved to
+     * @param outbox flushed whenever the server is reachable again, or null
+     * @param pgp decrypts the notes
+     */
+    public MailPoll(Account account, KeyWrapper keyWrapper, SecureChars secureEmailPass, LetteraDb db, Bee<Note> hub, Config.Housekeeping housekeeping, String housekeepingFolder, Outbox outbox, PgpEngine pgp)
+    {
+        this.outbox = outbox;
+        this.pgp = pgp;
+        this.account = account;
         this.keyWrapper = keyWrapper;
         this.secureEmailPass = secureEmailPass;
+        this.db = db;
         this.hub = hub;
+        this.housekeeping = housekeeping;
+        this.housekeepingFolder = housekeepingFolder;
+        // some relays only offer POP3
+        this.pop3 = (account.imapHost==null || account.imapHost.isEmpty()) && account.pop3Host!=null && !account.pop3Host.isEmpty();
+        this.scheduler = PollScheduler.forHost(pop3 ? account.pop3Host : account.imapHost);
     }    
     
     @Override
     public void run()
     {
         active=true;
-        Date after=null;
-        final MailReader mailReader = new IMAP(currentAccount.imapHost, currentAccount.imapPort, currentAccount.auth, currentAccount.starttls, false, currentAccount.username, secureEmailPass);
+        scheduler.start();
+        if(pop3)
+        {
+            runPop3();
+        }
+        else
+        {
+            runImap();
+        }
+        scheduler.stop();
+    }
+
+    private void runImap()
+    {
+        final ImapInbox mailReader = new ImapInbox(account.imapHost, account.imapPort, account.auth, account.starttls, account.username, secureEmailPass, housekeeping!=Config.Housekeeping.None);
+        this.inbox = mailReader;
+        final SearchTerm searchTerm = getSearchTerm(account);
         while(active)
         {
-            waitMillis += LOOP_MILLIS;
+            boolean idle = false;
             try
             {
-                Note note;
+                MailboxState state = db.getMailboxState(account.name, ImapInbox.INBOX);
                 if (!mailReader.isConnected())
                 {
-                    mailReader.connect();
+                    mailReader.connect(state);
+                    flushOutbox();
+                }
+                Map<Long, String> mailIndex = db.getMailIndex(account.name, ImapInbox.INBOX);
+                Map<Long, Integer> retries = db.getRetryIndex(account.name, ImapInbox.INBOX);
+                long uidValidity = mailReader.getUIDValidity();
+                Message[] messages;
+                long lastUid;
+                if(state==null || !state.isValid(uidValidity))
+                {
+                    mailIndex.clear();
+                    retries.clear();
+                    lastUid = mailReader.getLastUID();
+                    messages = mailReader.search(searchTerm);
+                    state = new MailboxState(uidValidity, 0, 0);
+                }
+                else
+                {
+                    state = syncChanges(mailReader, state, mailIndex);
+                    Message[] news = mailReader.getMessagesAfter(state.lastUid);
+                    lastUid = news.length>0 ? mailReader.getUID(news[news.length-1]) : state.lastUid;
+                    messages = mailReader.search(searchTerm, news);
+                }
+                long highestModSeq = state.highestModSeq>0 ? state.highestModSeq : mailReader.getSelectModSeq();
+                ArrayList<Note> notes = receive(mailReader, messages, mailIndex, retries);
+                db.putMailboxState(account.name, ImapInbox.INBOX, state.withLastUid(lastUid).withHighestModSeq(highestModSeq));
+                db.commit();
+                for(Note note : notes)
+                {
+                    hub.send(note);
+                }
+                if(!notes.isEmpty())
+                {
+                    scheduler.activity();
+                    Toolkit.getDefaultToolkit().beep();
+                }
+                // last, once the notes are stored and shown, what fails here is tried again next cycle
+                try
+                {
+                    housekeep(mailReader, mailIndex);
+                }
+                catch (MessagingException ex)
+                {
+                    System.getLogger(MailPoll.class.getName()).log(System.Logger.Level.ERROR, (String) null, ex);
+                }
+                // with IDLE the server tells us when something arrives, otherwise we keep polling
+                idle = active && mailReader.hasIdle();
+                if(idle)
+                {
+                    mailReader.idle();
+                }
+            }
+            catch (MessagingException ex)
+            {
+                System.getLogger(MailPoll.class.getName()).log(System.Logger.Level.ERROR, (String) null, ex);
+                mailReader.close();
+                idle = false;
+            }
+            catch (Exception ex)
+            {
+                System.getLogger(MailPoll.class.getName()).log(System.Logger.Level.ERROR, (String) null, ex);
+            }
+            if(!idle && active)
+            {
+                await();
+            }
+        }
+        mailReader.close();
+    }
+
+    /**
+     * Without IMAP every cycle is a short POP3 session, the UIDL index kept in
+     * the db tells which messages were already seen so only the new ones are
+     * downloaded, first the headers with TOP and then RETR for the notes.
+     */
+    private void runPop3()
+    {
+        final Pop3Inbox mailReader = new Pop3Inbox(account.pop3Host, account.pop3Port, account.auth, account.starttls, account.username, secureEmailPass, housekeeping==Config.Housekeeping.Delete);
+        boolean online = false;
+        while(active)
+        {
+            try
+            {
+                mailReader.connect();
+                if(!online)
+                {
+                    online = true;
+                    flushOutbox();
+                }
+                Map<String, String> uidlIndex = db.getUidlIndex(account.name);
+                Map<String, Integer> retries = db.getUidlRetryIndex(account.name);
+                Message[] messages = mailReader.getMessages();
+                ArrayList<Note> notes = receive(mailReader, messages, uidlIndex, retries);
+                db.commit();
+                for(Note note : notes)
+                {
+                    hub.send(note);
+                }
+                if(!notes.isEmpty())
+                {
+                    scheduler.activity();
+                    Toolkit.getDefaultToolkit().beep();
+                }
+                try
+                {
+                    housekeep(mailReader, messages, uidlIndex);
+                }
+                catch (MessagingException ex)
+                {
+                    System.getLogger(MailPoll.class.getName()).log(System.Logger.Level.ERROR, (String) null, ex);
+                }
+            }
+            catch (Exception ex)
+            {
+                System.getLogger(MailPoll.class.getName()).log(System.Logger.Level.ERROR, (String) null, ex);
+                online = false;
+            }
+            finally
+            {
+                mailReader.close();
+            }
+            if(active)
+            {
+                await();
+            }
+        }
+    }
+
+    /**
+     * Being able to connect again is a good hint that SMTP works too.
+     */
+    private void flushOutbox()
+    {
+        if(outbox!=null)
+        {
+            outbox.flush();
+        }
+    }
+
+    private void await()
+    {
+        try
+        {
+            synchronized (lock)
+            {
+                if(!synced)
+                {
+                    lock.wait(scheduler.nextDelay());
                 }
-                Message[] messages = after != null ? mailReader.getMessages(after) : mailReader.getMessages();
-                for (Message item : messages)
+                synced = false;
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            System.getLogger(MailPoll.class.getName()).log(System.Logger.Level.ERROR, (String) null, ex);
+        }
+    }
+
+    /**
+     * Routes every message to its chat and stores the decrypted notes. The
+     * checkpoint moves past every message whatever the outcome, one that
+     * failed in a way that may go away is fetched again by UID on the next
+     * cycles, up to MAX_ATTEMPTS times.
+     */
+    private ArrayList<Note> receive(ImapInbox mailReader, Message[] messages, Map<Long, String> mailIndex, Map<Long, Integer> retries) throws MessagingException, InterruptedException
+    {
+        ArrayList<Note> notes = new ArrayList<>();
+        HashMap<Long, Integer> attempts = new HashMap<>(retries);
+        if(!attempts.isEmpty())
+        {
+            Message[] again = mailReader.getMessagesByUID(attempts.keySet().stream().mapToLong(Long::longValue).toArray());
+            messages = Arrays.copyOf(messages, messages.length+again.length);
+            System.arraycopy(again, 0, messages, messages.length-again.length, again.length);
+        }
+        if(messages.length==0)
+        {
+            return notes;
+        }
+        mailReader.fetchEnvelopes(messages);
+        ArrayList<Chat> chats = new ArrayList<>();
+        ArrayList<Message> routed = route(messages, chats);
+        if(routed.isEmpty())
+        {
+            attempts.keySet().forEach(retries::remove);
+            return notes;
+        }
+        Map<String, String> received = db.getReceivedIndex(account.name);
+        HashMap<Message, String> stored = new HashMap<>();
+        ArrayList<String> keys = dropReceived(routed, chats, received, stored);
+        for(Map.Entry<Message, String> item : stored.entrySet())
+        {
+            mailIndex.put(mailReader.getUID(item.getKey()), item.getValue());
+        }
+        List<List<Note>> readAll = Collections.emptyList();
+        if(!routed.isEmpty())
+        {
+            mailReader.fetchMessages(routed.toArray(new Message[0]));
+            readAll = readAll(routed, chats);
+        }
+        // the expunged ones are gone, the others are added again if they fail
+        attempts.keySet().forEach(retries::remove);
+        for (int i=0;i<routed.size();i++)
+        {
+            long uid = mailReader.getUID(routed.get(i));
+            List<Note> read = readAll.get(i);
+            if(read==null)
+            {
+                retry(retries, uid, attempts.getOrDefault(uid, 0));
+            }
+            else if(!read.isEmpty())
+            {
+                Map<Long, Note> chatNotes = db.getNotes(read.get(0).session);
+                for(Note note : read)
+                {
+                    chatNotes.put(note.id, note);
+                }
+                String ref = getNoteRef(read);
+                mailIndex.put(uid, ref);
+                if(keys.get(i)!=null)
                 {
-                    after = Utils.max(after != null ? after : new Date(0), item.getReceivedDate());
-                    if (isCurrentChatSession(item))
+                    received.put(keys.get(i), ref);
+                }
+                notes.addAll(read);
+            }
+        }
+        return notes;
+    }
+
+    /**
+     * Downloads only the messages whose UIDL isn't in the index yet, every one
+     * of them is recorded so it's never downloaded again, but for the ones
+     * that failed in a way that may go away, up to MAX_ATTEMPTS times. The
+     * UIDLs no longer in the maildrop are forgotten.
+     */
+    private ArrayList<Note> receive(Pop3Inbox mailReader, Message[] messages, Map<String, String> uidlIndex, Map<String, Integer> retries) throws MessagingException, InterruptedException
+    {
+        ArrayList<Note> notes = new ArrayList<>();
+        HashSet<String> present = new HashSet<>();
+        ArrayList<Message> unseen = new ArrayList<>();
+        for(Message item : messages)
+        {
+            String uid = mailReader.getUID(item);
+            if(uid!=null && present.add(uid) && !uidlIndex.containsKey(uid))
+            {
+                unseen.add(item);
+            }
+        }
+        for(String uid : new ArrayList<>(uidlIndex.keySet()))
+        {
+            if(!present.contains(uid))
+            {
+                uidlIndex.remove(uid);
+            }
+        }
+        for(String uid : new ArrayList<>(retries.keySet()))
+        {
+            if(!present.contains(uid))
+            {
+                retries.remove(uid);
+            }
+        }
+        if(unseen.isEmpty())
+        {
+            return notes;
+        }
+        Message[] news = unseen.toArray(new Message[0]);
+        mailReader.fetchHeaders(news);
+        ArrayList<Chat> chats = new ArrayList<>();
+        ArrayList<Message> routed = route(news, chats);
+        Map<String, String> received = db.getReceivedIndex(account.name);
+        HashMap<Message, String> stored = new HashMap<>();
+        ArrayList<String> keys = dropReceived(routed, chats, received, stored);
+        for(Map.Entry<Message, String> item : stored.entrySet())
+        {
+            uidlIndex.put(mailReader.getUID(item.getKey()), item.getValue());
+        }
+        List<List<Note>> readAll = readAll(routed, chats);
+        HashSet<String> failed = new HashSet<>();
+        for (int i=0;i<routed.size();i++)
+        {
+            String uid = mailReader.getUID(routed.get(i));
+            List<Note> read = readAll.get(i);
+            if(read==null)
+            {
+                if(retry(retries, uid, retries.getOrDefault(uid, 0)))
+                {
+                    failed.add(uid);
+                }
+                continue;
+            }
+            retries.remove(uid);
+            if(!read.isEmpty())
+            {
+                Map<Long, Note> chatNotes = db.getNotes(read.get(0).session);
+                for(Note note : read)
+                {
+                    chatNotes.put(note.id, note);
+                }
+                String ref = getNoteRef(read);
+                uidlIndex.put(uid, ref);
+                if(keys.get(i)!=null)
+                {
+                    received.put(keys.get(i), ref);
+                }
+                notes.addAll(read);
+            }
+        }
+        for(Message item : news)
+        {
+            String uid = mailReader.getUID(item);
+            if(!failed.contains(uid))
+            {
+                uidlIndex.putIfAbsent(uid, "");
+            }
+        }
+        return notes;
+    }
+
+    /**
+     * Drops the messages whose notes are already stored, the same mail seen
+     * again under a new UID after the UIDVALIDITY changed or a copy of it.
+     *
+     * @param stored where the note reference of every dropped message goes
+     * @return the key of every message left, in the same order, or null if it
+     * has none
+     */
+    private ArrayList<String> dropReceived(ArrayList<Message> routed, ArrayList<Chat> chats, Map<String, String> received, Map<Message, String> stored)
+    {
+        ArrayList<String> keys = new ArrayList<>(routed.size());
+        for(int i=0;i<routed.size();)
+        {
+            String key = getReceivedKey(routed.get(i));
+            String ref = key!=null ? received.get(key) : null;
+            if(ref!=null)
+            {
+                stored.put(routed.remove(i), ref);
+                chats.remove(i);
+            }
+            else
+            {
+                keys.add(key);
+                i++;
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * @return the Message-ID, or if there's none a hash of the sender, the
+     * date and the ciphertext, null if the message can't be read now
+     */
+    static String getReceivedKey(Message item)
+    {
+        try
+        {
+            String messageId = item instanceof MimeMessage ? ((MimeMessage) item).getMessageID() : null;
+            if(messageId!=null && !messageId.isBlank())
+            {
+                return messageId.trim();
+            }
+            byte[] ciphertext = getCiphertext(item);
+            if(ciphertext==null)
+            {
+                return null;
+            }
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            Address[] from = item.getFrom();
+            sha256.update(String.valueOf(from!=null && from.length>0 ? ChatRouter.getAddress(from[0]) : null).getBytes(StandardCharsets.UTF_8));
+            Date sentDate = item.getSentDate();
+            sha256.update(Long.toString(sentDate!=null ? sentDate.getTime() : 0).getBytes(StandardCharsets.UTF_8));
+            sha256.update(ciphertext);
+            return HexFormat.of().formatHex(sha256.digest());
+        }
+        catch (MessagingException | IOException ex)
+        {
+            System.getLogger(MailPoll.class.getName()).log(System.Logger.Level.DEBUG, (String) null, ex);
+            return null;
+        }
+        catch (NoSuchAlgorithmException ex)
+        {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * @return true if the message is tried again, false if it's given up
+     */
+    private <K> boolean retry(Map<K, Integer> retries, K uid, int attempts)
+    {
+        if(attempts+1<MAX_ATTEMPTS)
+        {
+            retries.put(uid, attempts+1);
+            return true;
+        }
+        retries.remove(uid);
+        System.getLogger(MailPoll.class.getName()).log(System.Logger.Level.WARNING, "giving up on message "+uid+" of "+account.name+" after "+MAX_ATTEMPTS+" attempts");
+        return false;
+    }
+
+    /**
+     * Moves or deletes with a single command every mail whose note is already
+     * stored, including the ones stored before the policy was enabled, so
+     * INBOX only holds what is still to be read.
+     */
+    private void housekeep(ImapInbox mailReader, Map<Long, String> mailIndex) throws MessagingException
+    {
+        if(housekeeping==Config.Housekeeping.None || mailIndex.isEmpty())
+        {
+            return;
+        }
+        long[] uids = mailIndex.keySet().stream().mapToLong(Long::longValue).toArray();
+        Message[] messages = mailReader.getMessagesByUID(uids);
+        if(housekeeping==Config.Housekeeping.Move)
+        {
+            mailReader.moveTo(messages, housekeepingFolder);
+        }
+        else
+        {
+            mailReader.delete(messages);
+        }
+        for(long uid : uids)
+        {
+            mailIndex.remove(uid);
+        }
+        db.commit();
+    }
+
+    /**
+     * POP3 has no folders, so only the Delete policy applies, the DELE are sent
+     * when the session is closed and the UIDLs are forgotten on the next cycle.
+     */
+    private void housekeep(Pop3Inbox mailReader, Message[] messages, Map<String, String> uidlIndex) throws MessagingException
+    {
+        if(housekeeping!=Config.Housekeeping.Delete)
+        {
+            return;
+        }
+        ArrayList<Message> stored = new ArrayList<>();
+        for(Message item : messages)
+        {
+            String uid = mailReader.getUID(item);
+            String ref = uid!=null ? uidlIndex.get(uid) : null;
+            if(ref!=null && !ref.isEmpty())
+            {
+                stored.add(item);
+            }
+        }
+        mailReader.delete(stored.toArray(new Message[0]));
+    }
+
+    /**
+     * @param chats where the chat of every routed message is added
+     * @return the messages that belong to a chat of this account
+     */
+    private ArrayList<Message> route(Message[] messages, ArrayList<Chat> chats) throws MessagingException
+    {
+        ChatRouter router = db.getRouter();
+        ArrayList<Message> routed = new ArrayList<>();
+        for (Message item : messages)
+        {
+            Chat chat = router.route(item);
+            if (chat!=null && account.name.equals(chat.accountName))
+            {
+                routed.add(item);
+                chats.add(chat);
+            }
+        }
+        return routed;
+    }
+
+    /**
+     * Applies what other devices did since the last sync, a \Seen flag marks
+     * the note as showed and an expunged message leaves the index.
+     */
+    private MailboxState syncChanges(ImapInbox mailReader, MailboxState state, Map<Long, String> mailIndex) throws MessagingException
+    {
+        for(long uid : mailReader.pollVanished())
+        {
+            mailIndex.remove(uid);
+        }
+        long highestModSeq = state.highestModSeq;
+        for(Message item : mailReader.getChangedSince(state.lastUid, state.highestModSeq))
+        {
+            highestModSeq = Math.max(highestModSeq, ((IMAPMessage) item).getModSeq());
+            String ref = mailIndex.get(mailReader.getUID(item));
+            if(ref!=null && item.isSet(Flags.Flag.SEEN))
+            {
+                int sep = ref.lastIndexOf(':');
+                Map<Long, Note> notes = db.getNotes(ref.substring(0, sep));
+                for(String id : ref.substring(sep+1).split(","))
+                {
+                    Note note = notes.get(Long.parseLong(id));
+                    if(note!=null && !note.isShowed())
                     {
-                        char[] gpgPass = keyWrapper.unwrapKey(GPG_PURPOSE, currentChat.accountName, currentAccount.gpgPass);
-                        //666 hub.send(item, gpgPass);
-                        //666 hub.send(note);
-                        Arrays.fill(gpgPass, '\0');
-                        Toolkit.getDefaultToolkit().beep();
+                        note.setShowed(true);
+                        notes.put(note.id, note);
                     }
                 }
-                synchronized (lock)
+            }
+        }
+        return state.withHighestModSeq(highestModSeq);
+    }
+
+    /**
+     * @return "session:id" or "session:id1,id2,..." for a bundle
+     */
+    private static String getNoteRef(List<Note> notes)
+    {
+        StringBuilder sb = new StringBuilder(notes.get(0).session).append(':');
+        for(int i=0;i<notes.size();i++)
+        {
+            sb.append(i>0 ? "," : "").append(notes.get(i).id);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Decrypts all the messages in one go, with a single unlock of the key,
+     * which is what makes catching up after some downtime fast. Every message
+     * stands on its own, one that can't be read doesn't hold back the others.
+     *
+     * @return the notes of every message, in the same order, empty if it has
+     * none or was rejected for good, null if it failed in a way that may work
+     * next time, a locked key or a dropped connection
+     */
+    private List<List<Note>> readAll(List<Message> routed, List<Chat> chats) throws InterruptedException
+    {
+        ArrayList<List<Note>> notes = new ArrayList<>(routed.size());
+        ArrayList<byte[]> ciphertexts = new ArrayList<>();
+        ArrayList<Integer> positions = new ArrayList<>();
+        for (int i=0;i<routed.size();i++)
+        {
+            notes.add(Collections.emptyList());
+            try
+            {
+                byte[] ciphertext = getCiphertext(routed.get(i));
+                if (ciphertext!=null)
                 {
-                    lock.wait(waitMillis);
+                    ciphertexts.add(ciphertext);
+                    positions.add(i);
                 }
             }
-            catch (InterruptedException | IOException | MessagingException ex)
+            catch (MessagingException | IOException ex)
             {
-                System.getLogger(TerminalChat.class.getName()).log(System.Logger.Level.ERROR, (String) null, ex);
+                System.getLogger(MailPoll.class.getName()).log(System.Logger.Level.ERROR, (String) null, ex);
+                notes.set(i, null);
             }
-            catch (Exception ex)
+        }
+        if(ciphertexts.isEmpty())
+        {
+            return notes;
+        }
+        List<PgpEngine.Decrypted> decrypted;
+        char[] gpgPass = keyWrapper.unwrapKey(GPG_PURPOSE, account.name, account.gpgPass);
+        try
+        {
+            decrypted = pgp.decryptAll(ciphertexts, gpgPass);
+        }
+        finally
+        {
+            Arrays.fill(gpgPass, '\0');
+        }
+        for (int k=0;k<decrypted.size();k++)
+        {
+            int i = positions.get(k);
+            PgpEngine.Decrypted item = decrypted.get(k);
+            if(!item.isDecrypted())
+            {
+                System.getLogger(MailPoll.class.getName()).log(System.Logger.Level.ERROR, (String) null, item.error);
+                notes.set(i, item.isRejected() ? Collections.emptyList() : null);
+                continue;
+            }
+            try
+            {
+                notes.set(i, readNotes(chats.get(i), routed.get(i), item));
+            }
+            catch (MessagingException ex)
+            {
+                System.getLogger(MailPoll.class.getName()).log(System.Logger.Level.ERROR, (String) null, ex);
+                notes.set(i, null);
+            }
+            catch (IOException | RuntimeException ex)
+            {
+                // a forged signer or a malformed payload, it won't get any better
+                System.getLogger(MailPoll.class.getName()).log(System.Logger.Level.ERROR, (String) null, ex);
+            }
+        }
+        return notes;
+    }
+
+    /**
+     * @param decrypted the verified payload
+     * @return the notes carried by the message, several if the sender bundled
+     * a burst of them
+     * @throws IOException if it isn't signed by the friend, or in a group by
+     * the member it comes from
+     */
+    private List<Note> readNotes(Chat chat, Message item, PgpEngine.Decrypted decrypted) throws MessagingException, IOException
+    {
+        ArrayList<Note> notes = new ArrayList<>();
+        String from = chat.friendAddress;
+        String fromKeyid = chat.friendKeyid;
+        if(chat instanceof GroupChat)
+        {
+            // the router already matched the sender with a member
+            GroupChat group = (GroupChat) chat;
+            int member = group.indexOf(ChatRouter.getAddress(item.getFrom()[0]));
+            if(member<0)
+            {
+                return notes;
+            }
+            from = group.memberAddresses[member];
+            fromKeyid = group.memberKeyids[member];
+        }
+        // the subject and From can be forged, the signature can't
+        if(!decrypted.isSignedBy(fromKeyid))
+        {
+            throw new IOException("note for "+chat.id+" signed by "+decrypted.signer+" instead of "+fromKeyid);
+        }
+        byte[] plaintext = decrypted.plaintext;
+        long now = JavaTime.epochSecond();
+        Date sentDate = item.getSentDate();
+        long sent = sentDate!=null ? TimeUnit.MILLISECONDS.toSeconds(sentDate.getTime()) : now;
+        ArrayList<String> candidates = new ArrayList<>();
+        if(plaintext.length>0 && plaintext[0]==PayloadCodec.MARKER)
+        {
+            for(Note note : db.getRecentNotes(chat.id, Lettera.DICTIONARY_SCAN))
+            {
+                candidates.add(note.text);
+            }
+        }
+        if(!(chat instanceof GroupChat))
+        {
+            // only what a verified note of the friend says, the sender compresses for it
+            String[] header = item.getHeader(PayloadCodec.HEADER);
+            String codec = header!=null && header.length>0 ? header[0].trim() : "";
+            Map<String, String> codecs = db.getCodecIndex();
+            if(!codec.equals(codecs.get(chat.id)))
             {
-                System.getLogger(TerminalChat.class.getName()).log(System.Logger.Level.ERROR, (String) null, ex);
+                codecs.put(chat.id, codec);
             }
         }
+        List<NoteBundle.Part> parts;
+        try
+        {
+            parts = NoteBundle.decode(PayloadCodec.decode(plaintext, candidates), PayloadCodec.isBundle(plaintext));
+        }
+        catch (PayloadCodec.MissingDictionaryException ex)
+        {
+            // written on a device with another history, from now on the mails
+            // of this chat don't announce dictionaries and the friend stops
+            // using them, this one is kept as unreadable instead of lost
+            System.getLogger(MailPoll.class.getName()).log(System.Logger.Level.WARNING, "note for "+chat.id+" compressed with notes not found here");
+            db.getDictionaryMisses().put(chat.id, true);
+            parts = NoteBundle.decode(UNREADABLE, false);
+        }
+        // a bundle keeps the sender's ids, its notes keep their order and the
+        // same mail read twice replaces them instead of adding them again
+        Map<Long, Note> chatNotes = db.getNotes(chat.id);
+        for(NoteBundle.Part part : parts)
+        {
+            long epochSecond = part.epochSecond>0 ? part.epochSecond : sent;
+            Note other = part.id>0 ? chatNotes.get(part.id) : null;
+            boolean taken = other!=null && !(Objects.equals(from, other.from) && Objects.equals(fromKeyid, other.keyFrom));
+            long id = part.id>0 && !taken ? part.id : Note.NONCE.get();
+            notes.add(new Note(id, epochSecond, chat.id, from, chat.accountAddress, fromKeyid, chat.accountKeyid, now, sent, part.text));
+        }
+        return notes;
     }
 
-    private boolean isCurrentChatSession(Message item) throws MessagingException
+    /**
+     * Reads the OpenPGP message straight from the part, binary from a PGP/MIME
+     * (RFC 3156) mail or armored from a text/plain one, gpg takes both.
+     *
+     * @return the ciphertext, or null if the mail carries none
+     */
+    static byte[] getCiphertext(Part item) throws MessagingException, IOException
     {
-        for(Address from : item.getFrom())
+        if(item.isMimeType("multipart/encrypted"))
         {
-            if(from.toString().contains(currentChat.accountAddress))
+            Multipart multipart = (Multipart) item.getContent();
+            for(int i=0;i<multipart.getCount();i++)
             {
-                for(Address to : item.getAllRecipients())
+                BodyPart part = multipart.getBodyPart(i);
+                if(part.isMimeType(MailPush.OCTET_STREAM))
                 {
-                    if(to.toString().contains(currentChat.friendAddress))
+                    try(InputStream in = part.getInputStream())
                     {
-                        return true;
+                        return in.readAllBytes();
                     }
                 }
-                return false;
             }
+            return null;
         }
-        return false;
+        if(item.isMimeType("text/plain"))
+        {
+            // the armor is ASCII, no need to go through a String
+            try(InputStream in = item.getInputStream())
+            {
+                return in.readAllBytes();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Every lettera note for this account, the server sends nothing else and
+     * each message is routed to its chat locally.
+     */
+    static SearchTerm getSearchTerm(Account account)
+    {
+        return new AndTerm(new SubjectTerm(Chat.SUBJECT_PREFIX), new RecipientStringTerm(Message.RecipientType.TO, account.address));
     }
+
     public MailPoll start()
     {
-        Thread th = new Thread(this, "MailGetBot");
+        Thread th = new Thread(this, "MailGetBot-"+account.name);
         th.setDaemon(true);
         th.start();
         return this;
@@ -140,14 +866,25 @@ public class MailPoll implements Runnable
     public void close()
     {
         this.active=false;
+        sync();
     }
     
+    /**
+     * Polls right now and keeps polling fast for a while, to be called when a
+     * note is sent because a reply is likely.
+     */
     public void sync()
     {
+        scheduler.activity();
         synchronized (lock)
         {
-            waitMillis=0;
+            synced = true;
             lock.notifyAll();
         }
+        ImapInbox mailReader = this.inbox;
+        if(mailReader!=null)
+        {
+            mailReader.wakeup();
+        }
     }
 }
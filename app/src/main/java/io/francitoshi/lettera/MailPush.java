@@ -22,80 +22,130 @@ package io.francitoshi.lettera;
 
 import static io.francitoshi.lettera.Lettera.GPG_PURPOSE;
 import static io.francitoshi.lettera.Lettera.UTF8;
-import io.nut.base.crypto.gpg.GPG;
-import io.nut.base.security.SecureChars;
-import io.nut.base.time.JavaTime;
 import io.nut.base.util.Utils;
 import io.nut.base.util.concurrent.hive.Bee;
-import io.nut.core.net.mail.SMTP;
+import jakarta.activation.DataHandler;
 import jakarta.mail.MessagingException;
+import jakarta.mail.Part;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
+import jakarta.mail.util.ByteArrayDataSource;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.List;
 
 public class MailPush extends Bee<Note>
 {
-    private static final GPG GPG = Lettera.GPG;
+    static final String PGP_ENCRYPTED = "application/pgp-encrypted";
+    static final String OCTET_STREAM = "application/octet-stream";
+    private static final byte[] PGP_VERSION = "Version: 1\r\n".getBytes(StandardCharsets.US_ASCII);
 
-    private volatile boolean active;
     private final Chat currentChat;
     private final Account currentAccount;
-    private final Friend currentFriend;
     private final KeyWrapper keyWrapper;
 
-    private final SecureChars secureEmailPass;
-    private final SMTP smtp;
-    private final Bee<Note> hub;
+    private final SmtpPool smtp;
+    private final Outbox outbox;
 
-    public MailPush(Chat currentChat, Account currentAccount, Friend currentFriend, KeyWrapper keyWrapper, SecureChars secureEmailPass, Bee<Note> hub)
+    /**
+     * @param smtp the connections of the account, shared with its other chats
+     * @param outbox where the notes wait until they are sent
+     */
+    public MailPush(Chat currentChat, Account currentAccount, KeyWrapper keyWrapper, SmtpPool smtp, Outbox outbox)
     {
         this.currentChat = currentChat;
         this.currentAccount = currentAccount;
-        this.currentFriend = currentFriend;
         this.keyWrapper = keyWrapper;
-        this.secureEmailPass = secureEmailPass;
-        this.smtp = new SMTP(currentAccount.smtpHost, currentAccount.smtpPort, currentAccount.auth, currentAccount.starttls, currentAccount.username, secureEmailPass, currentAccount.address);
-        this.hub = hub;
+        this.smtp = smtp;
+        this.outbox = outbox;
     }
 
-    public boolean sendNote(String text) throws MessagingException, InterruptedException, IOException
+    static boolean sendNote(Chat chat, Account account, KeyWrapper keyWrapper, PgpEngine pgp, SmtpPool smtp, String text, boolean bundle, List<String> dictionary, String codec, boolean pgpMime) throws MessagingException, InterruptedException, IOException
     {
-        byte[] plainBytes = text.getBytes(UTF8);
-        char[] gpgPass = keyWrapper.unwrapKey(GPG_PURPOSE, currentChat.accountName, currentAccount.gpgPass);
-        byte[] encryptedText = GPG.encryptAndSign(plainBytes, currentChat.accountAddress, gpgPass, currentChat.friendAddress);
-        Arrays.fill(gpgPass, '\0');
-        if (!smtp.isConnected())
-        {
-            smtp.connect();
-        }
-        String subject = "lettera " + currentChat.accountKeyid + "-" + currentChat.friendKeyid+Utils.firstNonNull(currentChat.mutualAuthProof,"");
-        smtp.send(subject, new String(encryptedText, UTF8), currentChat.friendAddress);
+        deliver(chat, smtp, encrypt(chat, account, keyWrapper, pgp, text, bundle, dictionary, pgpMime), codec, pgpMime);
         return true;
     }
 
-    @Override
-    protected void receive(Note note)
+    /**
+     * @param bundle the text is a {@link NoteBundle}
+     * @param dictionary recent texts of the friend to compress with, see
+     * {@link PayloadCodec}, null to not compress
+     * @param binary no ASCII armor, for PGP/MIME
+     * @return the ciphertext, armored or binary, readable by every recipient
+     * of the chat
+     */
+    static byte[] encrypt(Chat chat, Account account, KeyWrapper keyWrapper, PgpEngine pgp, String text, boolean bundle, List<String> dictionary, boolean binary) throws InterruptedException, IOException
     {
+        byte[] plainBytes = PayloadCodec.encode(text, bundle, dictionary);
+        char[] gpgPass = keyWrapper.unwrapKey(GPG_PURPOSE, chat.accountName, account.gpgPass);
         try
         {
-            boolean rc = sendNote(note.text);
-            if(rc)
-            {
-                note.setSent(JavaTime.epochSecond());
-                hub.send(note);
-            }
+            return pgp.encryptAndSign(plainBytes, !binary, chat.accountAddress, gpgPass, chat.getRecipients());
         }
-        catch (MessagingException | InterruptedException | IOException ex)
+        finally
         {
-            System.getLogger(MailPush.class.getName()).log(System.Logger.Level.ERROR, (String) null, ex);
+            Arrays.fill(gpgPass, '\0');
         }
     }
 
-    public void close()
+    /**
+     * A group note goes to all the members in one mail, a single SMTP
+     * transaction with a RCPT per member.
+     *
+     * @param ciphertext as returned by encrypt
+     * @param codec what this side decodes, see
+     * {@link PayloadCodec#getCapabilities(boolean)}
+     * @param pgpMime sent as PGP/MIME (RFC 3156) instead of an armored text
+     * body
+     */
+    static void deliver(Chat chat, SmtpPool smtp, byte[] ciphertext, String codec, boolean pgpMime) throws MessagingException
     {
-        this.active = false;
-        if(smtp.isConnected())
+        String subject = chat.getSentTag()+Utils.firstNonNull(chat.mutualAuthProof,"");
+        MimeMessage message = smtp.newMessage(subject, chat.getRecipients());
+        if(pgpMime)
         {
-            smtp.close();
+            message.setContent(getPgpMime(ciphertext));
         }
+        else
+        {
+            message.setText(new String(ciphertext, UTF8), "UTF-8");
+        }
+        message.setHeader(PayloadCodec.HEADER, codec);
+        smtp.send(message);
+    }
+
+    /**
+     * multipart/encrypted with the control part "Version: 1" and the binary
+     * OpenPGP message as application/octet-stream.
+     */
+    static MimeMultipart getPgpMime(byte[] ciphertext) throws MessagingException
+    {
+        MimeMultipart multipart = new MimeMultipart("encrypted; protocol=\""+PGP_ENCRYPTED+"\"");
+        MimeBodyPart control = new MimeBodyPart();
+        control.setDataHandler(new DataHandler(new ByteArrayDataSource(PGP_VERSION, PGP_ENCRYPTED)));
+        multipart.addBodyPart(control);
+        MimeBodyPart encrypted = new MimeBodyPart();
+        encrypted.setDataHandler(new DataHandler(new ByteArrayDataSource(ciphertext, OCTET_STREAM)));
+        encrypted.setDisposition(Part.INLINE);
+        encrypted.setFileName("encrypted.gpg");
+        multipart.addBodyPart(encrypted);
+        return multipart;
+    }
+
+    /**
+     * The note goes to the outbox, it's sent from there and kept until then,
+     * even across restarts.
+     */
+    @Override
+    protected void receive(Note note)
+    {
+        outbox.add(note);
+    }
+
+    public void close()
+    {
+        // the pool outlives the chat, it's closed with Lettera
     }
 }
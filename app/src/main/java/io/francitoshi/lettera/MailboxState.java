@@ -0,0 +1,66 @@
+/*
+ *  MailboxState.java
+ *
+ *  Copyright (c) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ */
+package io.francitoshi.lettera;
+
+import java.io.Serializable;
+
+/**
+ * Sync checkpoint of a remote folder, the highest UID already seen is only
+ * meaningful while the UIDVALIDITY of the folder doesn't change. The
+ * HIGHESTMODSEQ (RFC 7162) is 0 when the server has no CONDSTORE.
+ *
+ * @author franci
+ */
+public class MailboxState implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    public final long uidValidity;
+    public final long lastUid;
+    public final long highestModSeq;
+
+    public MailboxState(long uidValidity, long lastUid, long highestModSeq)
+    {
+        this.uidValidity = uidValidity;
+        this.lastUid = lastUid;
+        this.highestModSeq = highestModSeq;
+    }
+
+    public MailboxState withLastUid(long value)
+    {
+        return value>lastUid ? new MailboxState(uidValidity, value, highestModSeq) : this;
+    }
+
+    public MailboxState withHighestModSeq(long value)
+    {
+        return value>highestModSeq ? new MailboxState(uidValidity, lastUid, value) : this;
+    }
+
+    public boolean isValid(long value)
+    {
+        return this.uidValidity==value;
+    }
+
+    static String key(String name, String folder)
+    {
+        return name+"/"+folder;
+    }
+}
@@ -38,17 +38,25 @@ import io.nut.base.resources.I18n;
 import io.nut.base.security.SecureChars;
 import io.nut.base.util.Java;
 import io.nut.base.util.Utils;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.TimeUnit;
-import org.jline.terminal.*;
 
 public class Main
 {
@@ -56,11 +64,7 @@ public class Main
     static final String COPYRIGHT = "Copyright (C) 2025-2026 francitoshi@gmail.com";
     static final String VER = Utils.firstNonNull(Main.class.getPackage().getImplementationVersion(), "[dev]");
     private static final String VERSION = LETTERA + " v" + VER;
-    static final String LICENSE_TXT;
-    static final String HELP_TXT;
-    static final String WELCOME_TXT;
 
-    static final String LETTERA_TXT;
     static final String LETTERA_DB = "lettera.db";
 
     static final String TOR_HOST = "127.0.0.1";
@@ -69,18 +73,30 @@ public class Main
 
     static final String GMAIL_ADD_PASS = "https://myaccount.google.com/apppasswords";
 
-    static 
+    /**
+     * The localized texts, resolved the first time one is printed so the
+     * commands that print none of them don't load the bundles.
+     */
+    static class Texts
     {
-        I18n i18n = I18n.of(Main.class);
+        static final String LICENSE_TXT;
+        static final String HELP_TXT;
+        static final String WELCOME_TXT;
+        static final String LETTERA_TXT;
 
-        HELP_TXT = i18n.resolveResource("help", "");
-        LICENSE_TXT = i18n.resolveResource("license", "").replace("$COPYRIGHT$", COPYRIGHT);
-        LETTERA_TXT = i18n.getResource("lettera.txt", "LETTERA");
+        static 
+        {
+            I18n i18n = I18n.of(Main.class);
+
+            HELP_TXT = i18n.resolveResource("help", "");
+            LICENSE_TXT = i18n.resolveResource("license", "").replace("$COPYRIGHT$", COPYRIGHT);
+            LETTERA_TXT = i18n.getResource("lettera.txt", "LETTERA");
 
-        WELCOME_TXT = i18n.resolveResource("welcome", "")
-                .replace("$LETTERA$", LETTERA_TXT)
-                .replace("$VERSION$", VER)
-                .replace("$COPYRIGHT$", COPYRIGHT);
+            WELCOME_TXT = i18n.resolveResource("welcome", "")
+                    .replace("$LETTERA$", LETTERA_TXT)
+                    .replace("$VERSION$", VER)
+                    .replace("$COPYRIGHT$", COPYRIGHT);
+        }
     }
         
     public static void main(String... args)
@@ -92,12 +108,14 @@ public class Main
         CommandOption listAccountsCmd = options.add(new CommandOption("list-accounts"));
         CommandOption listFriendsCmd = options.add(new CommandOption("list-friends"));
         CommandOption listChatsCmd = options.add(new CommandOption("list-chats"));
+        CommandOption rekeyCmd = options.add(new CommandOption("rekey"));
         
         StringOption dirOp = options.add(new StringOption('d', "dir"));
         StringOption passphraseOp = options.add(new StringOption('p', "passphrase"));
         StringOption passPassOp = options.add(new StringOption('P', "pass-pass"));
         StringOption inputOp = options.add(new StringOption('I', "input"));
         StringOption outputOp = options.add(new StringOption('O', "output"));
+        StringOption fromOp = options.add(new StringOption('F', "from"));
         BooleanOption noWizardOp = options.add(new BooleanOption('W', "no-wizard"));
         BooleanOption license = options.add(new BooleanOption('L', "license"));
         BooleanOption debugOp = options.add(new BooleanOption('D', "debug"));
@@ -107,6 +125,7 @@ public class Main
         BooleanOption help = options.add(new BooleanOption('h', "help"));
         BooleanOption snapOp = options.add(new BooleanOption('S', "snap"));
         BooleanOption lite = options.add(new BooleanOption("lite"));
+        StringOption agentOp = options.add(new StringOption('A', "agent"));
         
         try
         {
@@ -114,7 +133,7 @@ public class Main
 
             if (help.isUsed())
             {
-                System.out.println(HELP_TXT);
+                System.out.println(Texts.HELP_TXT);
                 return;
             }
             if (version.isUsed())
@@ -124,14 +143,14 @@ public class Main
             }
             if (license.isUsed())
             {
-                System.out.println(LICENSE_TXT);
+                System.out.println(Texts.LICENSE_TXT);
                 return;
             }
-            boolean cmdUsed = CommandOption.isUsed(sendCmd, listAccountsCmd, listFriendsCmd, listChatsCmd);
+            boolean cmdUsed = CommandOption.isUsed(sendCmd, listAccountsCmd, listFriendsCmd, listChatsCmd, rekeyCmd);
 
-            if(!cmdUsed)
+            if(!cmdUsed && !agentOp.isUsed())
             {
-                System.out.println(Main.WELCOME_TXT);
+                System.out.println(Texts.WELCOME_TXT);
             }
 
             SecureChars passphrase = null;
@@ -169,6 +188,7 @@ public class Main
             final File configFile = new File(letteraDir, "config.properties");
             final File keystoreFile = new File(letteraDir, "keystore.p12");
             final File letteraDb = new File(letteraDir, LETTERA_DB);
+            final File agentSocket = new File(letteraDir, LetteraAgent.SOCKET);
 
             letteraDir.mkdirs();
         
@@ -195,12 +215,58 @@ public class Main
             boolean wizard = !noWizardOp.isUsed();
             boolean mock = input!=null || System.console()==null;
             
+            Iterator<String> texts = null;
+            BufferedReader reader = null;
+            if(sendCmd.isUsed())
+            {
+                if(fromOp.isUsed())
+                {
+                    reader = Files.newBufferedReader(Paths.get(fromOp.getValue()), StandardCharsets.UTF_8);
+                    texts = reader.lines().iterator();
+                }
+                else if(args.length==1 || (args.length==2 && args[1].equals("-")))
+                {
+                    reader = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+                    texts = reader.lines().iterator();
+                }
+                else
+                {
+                    texts = Arrays.asList(args).subList(1, args.length).iterator();
+                }
+            }
             if(proxyOp.isUsed() && torOp.isUsed())
             {
                 System.err.println("can't use --proxy and --tor at the same time");
                 System.exit(1);
             }
+            // an agent only sends the way it was started to
+            String networkMode = proxyOp.isUsed() ? "proxy "+proxyOp.getValue(TOR_HOST_PORT) : torOp.isUsed() ? "tor "+torOp.getValue(TOR_HOST_PORT) : "direct";
+
+            String command = sendCmd.isUsed() ? LetteraAgent.SEND : listAccountsCmd.isUsed() ? LetteraAgent.LIST_ACCOUNTS : listFriendsCmd.isUsed() ? LetteraAgent.LIST_FRIENDS : listChatsCmd.isUsed() ? LetteraAgent.LIST_CHATS : null;
+            // a running agent does it without the cold start, rekey needs the store to itself
+            Integer agentFailed = command!=null && !agentOp.isUsed() ? LetteraAgent.call(agentSocket, command, sendCmd.isUsed() ? args[0] : null, networkMode, texts, System.out) : null;
+            if(agentFailed!=null)
+            {
+                if(reader!=null)
+                {
+                    reader.close();
+                }
+                if(agentFailed>0)
+                {
+                    System.exit(1);
+                }
+                return;
+            }
+            if(LetteraAgent.isAlive(agentSocket))
+            {
+                // the agent keeps the database open and locked until it's idle
+                System.err.printf("an agent is running on %s and holds the database, stop it or wait %d minutes until it's idle\n", agentSocket, TimeUnit.MILLISECONDS.toMinutes(LetteraAgent.IDLE_MILLIS));
+                System.exit(1);
+            }
 
+            // bootstrapping Tor takes seconds, it's done while the store is unlocked
+            // and awaited before the first connection
+            CompletableFuture<Void> network = CompletableFuture.completedFuture(null);
             if(proxyOp.isUsed())
             {
                 HostPort hostPort = proxyOp.isUsed() ? getHostPort(proxyOp, TOR_HOST_PORT) : null;
@@ -210,21 +276,42 @@ public class Main
             else if(torOp.isUsed())
             {
                 HostPort hostPort = torOp.isUsed() ? getHostPort(proxyOp, TOR_HOST_PORT) : null;
-                Tor tor = Tor.managed(hostPort.port, SocksPolicy.LOCALHOST_ONLY);
-                tor.installGlobally();
+                network = CompletableFuture.runAsync(() ->
+                {
+                    try
+                    {
+                        Tor tor = Tor.managed(hostPort.port, SocksPolicy.LOCALHOST_ONLY);
+                        tor.installGlobally();
+                    }
+                    catch (IOException ex)
+                    {
+                        throw new CompletionException(ex);
+                    }
+                });
             }
             
-            if(cmdUsed)
+            if(agentOp.isUsed())
+            {
+                long idleMillis = agentOp.getValue()!=null ? TimeUnit.MINUTES.toMillis(Long.parseLong(agentOp.getValue())) : LetteraAgent.IDLE_MILLIS;
+                try(Lettera lettera = new Lettera(System.out, configFile, keystoreFile, letteraDb, passphrase, mock, debugOp.isUsed()).setLazy(true).open();
+                    LetteraAgent agent = new LetteraAgent(lettera, agentSocket, networkMode, idleMillis))
+                {
+                    Lettera.await(network);
+                    System.out.printf("agent: %s\n", agentSocket);
+                    agent.run();
+                }
+            }
+            else if(cmdUsed)
             {
-                try(Lettera lettera = new Lettera(System.out, configFile, keystoreFile, letteraDb, passphrase, mock, debugOp.isUsed()).open())
+                int failed = 0;
+                try(Lettera lettera = new Lettera(System.out, configFile, keystoreFile, letteraDb, passphrase, mock, debugOp.isUsed()).setLazy(true).open())
                 {
                     if(sendCmd.isUsed())
                     {
+                        Lettera.await(network);
                         lettera.startChat(args[0], Mode.Write);
-                        for(int i=1;i<args.length;i++)
-                        {
-                            lettera.send(args[i]);
-                        }
+                        // one note per line, encrypted and sent as a pipeline
+                        failed = lettera.sendAll(texts);
                     }
                     else if(listAccountsCmd.isUsed())
                     {
@@ -238,27 +325,26 @@ public class Main
                     {
                         lettera.listChats();
                     }
+                    else if(rekeyCmd.isUsed())
+                    {
+                        Config config = args.length>0 ? lettera.rekey(Long.parseLong(args[0])) : lettera.rekey();
+                        System.out.printf("argon2: iterations=%d memory=%d KiB parallelism=%d\n", config.iterations, config.memoryKB, config.parallelism);
+                    }
 //                lettera.setWizard(wizard);
 //                lettera.send();
                 }
+                if(reader!=null)
+                {
+                    reader.close();
+                }
+                if(failed>0)
+                {
+                    System.exit(1);
+                }
             }
             else
             {
-                try (Terminal terminal = getTerminal(mock, input, output))
-                {
-                    try(TerminalChat chat = new TerminalChat(terminal, configFile, keystoreFile, letteraDb, passphrase, mock, debugOp.isUsed()).open())
-                    {
-                        chat.setWizard(wizard);
-                        if(lite.isUsed())
-                        {
-                            System.err.println("NOT YET IMPLEMENTED");
-                        }
-                        else
-                        {
-                            chat.run();
-                        }
-                    }
-                }
+                TerminalChat.interactive(mock, input, output, configFile, keystoreFile, letteraDb, passphrase, debugOp.isUsed(), wizard, lite.isUsed(), network);
             }
         }
         catch (NoSuchAlgorithmException | CertificateException | KeyStoreException | MissingOptionParameterException | IOException | Base64DecoderException ex)
@@ -284,14 +370,5 @@ public class Main
         }
         return new HostPort(TOR_HOST, TOR_PORT);
     }
-    
-    private static Terminal getTerminal(boolean mock, InputStream input, OutputStream output) throws IOException
-    {
-        if(mock)
-        {
-            return new MockTerminal(input, output);
-        }
-        return TerminalBuilder.builder().build();
-    }
 
 }
@@ -0,0 +1,126 @@
+/*
+ *  NoteBundle.java
+ *
+ *  Copyright (c) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ */
+package io.francitoshi.lettera;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Packs several notes into the text of a single mail, so a burst of lines
+ * costs one encryption and one mail. A single note is sent as plain text, as
+ * before, so only bursts need a receiver that knows bundles. Whether a text
+ * is a bundle travels in the {@link PayloadCodec} frame, never in the text.
+ * <pre>
+ * id epochSecond length
+ * text
+ * ...
+ * </pre>
+ *
+ * @author franci
+ */
+public class NoteBundle
+{
+    public static class Part
+    {
+        public final long id;
+        public final long epochSecond;
+        public final String text;
+
+        public Part(long id, long epochSecond, String text)
+        {
+            this.id = id;
+            this.epochSecond = epochSecond;
+            this.text = text;
+        }
+    }
+
+    /**
+     * @param notes the notes of a single chat, in order
+     * @return true if they are sent as a bundle
+     */
+    public static boolean isBundle(List<Note> notes)
+    {
+        return notes.size()>1;
+    }
+
+    /**
+     * @param notes the notes of a single chat, in order
+     * @return the text to be encrypted
+     */
+    public static String encode(List<Note> notes)
+    {
+        if(!isBundle(notes))
+        {
+            return notes.get(0).text;
+        }
+        StringBuilder sb = new StringBuilder();
+        for(Note note : notes)
+        {
+            sb.append(note.id).append(' ').append(note.epochSecond).append(' ').append(note.text.length()).append('\n');
+            sb.append(note.text).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param text the decrypted text of a mail
+     * @param bundle the payload is flagged as a bundle, see
+     * {@link PayloadCodec#isBundle(byte[])}
+     * @return the notes it carries, a text that isn't a bundle is one part
+     * with id 0 and epochSecond 0
+     * @throws IllegalArgumentException if the bundle is malformed
+     */
+    public static List<Part> decode(String text, boolean bundle)
+    {
+        ArrayList<Part> parts = new ArrayList<>();
+        if(!bundle)
+        {
+            parts.add(new Part(0, 0, text));
+            return parts;
+        }
+        int pos = 0;
+        while(pos<text.length())
+        {
+            int eol = text.indexOf('\n', pos);
+            if(eol<0)
+            {
+                throw new IllegalArgumentException("truncated bundle at "+pos);
+            }
+            String[] fields = text.substring(pos, eol).split(" ");
+            if(fields.length!=3)
+            {
+                throw new IllegalArgumentException("bad bundle part at "+pos);
+            }
+            long id = Long.parseLong(fields[0]);
+            long epochSecond = Long.parseLong(fields[1]);
+            int length = Integer.parseInt(fields[2]);
+            int start = eol+1;
+            int end = start+length;
+            if(length<0 || end>=text.length() || text.charAt(end)!='\n')
+            {
+                throw new IllegalArgumentException("bad bundle part length at "+pos);
+            }
+            parts.add(new Part(id, epochSecond, text.substring(start, end)));
+            pos = end+1;
+        }
+        return parts;
+    }
+}
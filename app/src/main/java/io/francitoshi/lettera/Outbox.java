@@ -0,0 +1,278 @@
+/*
+ *  Outbox.java
+ *
+ *  Copyright (c) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ */
+package io.francitoshi.lettera;
+
+import io.nut.base.time.JavaTime;
+import io.nut.base.util.concurrent.hive.Bee;
+import jakarta.mail.SendFailedException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the notes kept in the outbox of LetteraDb, a note leaves the outbox
+ * only once it's sent, after a failure the whole outbox is retried with an
+ * exponential backoff. A note rejected by the server, or failing
+ * MAX_ATTEMPTS times, is moved to the failed notes of LetteraDb instead of
+ * holding the outbox forever. Notes added within the coalescing window of each other
+ * go out together, the consecutive notes of a chat in a single mail.
+ *
+ * @author franci
+ */
+public class Outbox implements Runnable
+{
+    static final long MIN_BACKOFF_MILLIS = 5_000;
+    static final long MAX_BACKOFF_MILLIS = 10 * 60_000;
+    static final int MAX_BUNDLE = 32;
+    static final int MAX_ATTEMPTS = 10;
+
+    public interface Sender
+    {
+        /**
+         * @param notes consecutive notes of the same chat
+         * @throws SendFailedException if they can never be sent
+         */
+        void send(List<Note> notes) throws Exception;
+    }
+
+    private volatile boolean active;
+    private final LetteraDb db;
+    private final Sender sender;
+    private final Bee<Note> hub;
+    private final long coalesceMillis;
+    private final Object lock = new Object();
+    private final Object sending = new Object();
+    private boolean flush;
+    private int failures;
+    private final Map<Long, Integer> attempts = new HashMap<>();
+    private volatile long lastAdded;
+
+    /**
+     * @param sender sends the notes of a chat
+     * @param hub receives every note once it's sent
+     * @param coalesceMillis how long to wait for another note before sending,
+     * 0 sends right away
+     */
+    public Outbox(LetteraDb db, Sender sender, Bee<Note> hub, long coalesceMillis)
+    {
+        this.db = db;
+        this.sender = sender;
+        this.hub = hub;
+        this.coalesceMillis = coalesceMillis;
+    }
+
+    /**
+     * Stores the note before anything else and wakes the sender.
+     */
+    public void add(Note note)
+    {
+        db.putOutbox(note);
+        db.commit();
+        lastAdded = System.nanoTime();
+        flush();
+    }
+
+    @Override
+    public void run()
+    {
+        while(active)
+        {
+            coalesce();
+            boolean failed = sendAll();
+            failures = failed ? failures+1 : 0;
+            try
+            {
+                synchronized (lock)
+                {
+                    if(!flush && active)
+                    {
+                        lock.wait(failures>0 ? getBackoff(failures) : 0);
+                    }
+                    flush = false;
+                }
+            }
+            catch (InterruptedException ex)
+            {
+                System.getLogger(Outbox.class.getName()).log(System.Logger.Level.ERROR, (String) null, ex);
+            }
+        }
+    }
+
+    private void giveUp(List<Note> bundle)
+    {
+        Map<Long, Note> failedNotes = db.getFailedOutbox();
+        for(Note note : bundle)
+        {
+            attempts.remove(note.id);
+            failedNotes.put(note.id, note);
+            db.removeOutbox(note.id);
+        }
+        db.commit();
+        System.getLogger(Outbox.class.getName()).log(System.Logger.Level.WARNING, bundle.size()+" notes of "+bundle.get(0).session+" couldn't be sent");
+    }
+
+    /**
+     * Sends the whole outbox once.
+     *
+     * @return true if a bundle failed and has to be retried
+     */
+    private boolean sendAll()
+    {
+        synchronized (sending)
+        {
+            boolean failed = false;
+            // a chat whose bundle failed waits for the next round, its later notes can't overtake it
+            HashSet<String> held = new HashSet<>();
+            for(List<Note> bundle : getBundles(db.getOutbox(), MAX_BUNDLE))
+            {
+                if(!active)
+                {
+                    break;
+                }
+                if(held.contains(bundle.get(0).session))
+                {
+                    continue;
+                }
+                try
+                {
+                    sender.send(bundle);
+                    long sent = JavaTime.epochSecond();
+                    Map<Long, Note> notes = db.getNotes(bundle.get(0).session);
+                    for(Note note : bundle)
+                    {
+                        note.setSent(sent);
+                        notes.put(note.id, note);
+                        db.removeOutbox(note.id);
+                    }
+                    db.commit();
+                    for(Note note : bundle)
+                    {
+                        attempts.remove(note.id);
+                        hub.send(note);
+                    }
+                }
+                catch (Exception ex)
+                {
+                    System.getLogger(Outbox.class.getName()).log(System.Logger.Level.ERROR, (String) null, ex);
+                    int attempt = attempts.merge(bundle.get(0).id, 1, Integer::sum);
+                    if(ex instanceof SendFailedException || attempt>=MAX_ATTEMPTS)
+                    {
+                        giveUp(bundle);
+                    }
+                    else
+                    {
+                        held.add(bundle.get(0).session);
+                        failed = true;
+                    }
+                }
+            }
+            return failed;
+        }
+    }
+
+    /**
+     * Sends what the outbox holds right now on the calling thread, so a
+     * one-shot command doesn't exit before the notes left from the last run
+     * are sent. What fails stays for the outbox thread.
+     */
+    public void drain()
+    {
+        sendAll();
+    }
+
+    /**
+     * Waits while notes keep arriving within the window, up to a few windows,
+     * so a burst goes out as one mail.
+     */
+    private void coalesce()
+    {
+        long deadline = System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(coalesceMillis*4);
+        long gap;
+        while(active && (gap = TimeUnit.MILLISECONDS.toNanos(coalesceMillis)-(System.nanoTime()-lastAdded))>0 && System.nanoTime()<deadline)
+        {
+            try
+            {
+                TimeUnit.NANOSECONDS.sleep(gap);
+            }
+            catch (InterruptedException ex)
+            {
+                System.getLogger(Outbox.class.getName()).log(System.Logger.Level.ERROR, (String) null, ex);
+                return;
+            }
+        }
+    }
+
+    /**
+     * @param notes sorted by id
+     * @return the runs of consecutive notes of the same chat, at most max each
+     */
+    static List<List<Note>> getBundles(Note[] notes, int max)
+    {
+        ArrayList<List<Note>> bundles = new ArrayList<>();
+        ArrayList<Note> bundle = null;
+        for(Note note : notes)
+        {
+            if(bundle==null || bundle.size()>=max || !bundle.get(0).session.equals(note.session))
+            {
+                bundle = new ArrayList<>();
+                bundles.add(bundle);
+            }
+            bundle.add(note);
+        }
+        return bundles;
+    }
+
+    static long getBackoff(int failures)
+    {
+        return Math.min(MAX_BACKOFF_MILLIS, MIN_BACKOFF_MILLIS << Math.min(failures-1, 16));
+    }
+
+    public Outbox start()
+    {
+        active = true;
+        Thread th = new Thread(this, "Outbox");
+        th.setDaemon(true);
+        th.start();
+        return this;
+    }
+
+    /**
+     * Retries right now, to be called when a note is added or the connection
+     * comes back.
+     */
+    public void flush()
+    {
+        synchronized (lock)
+        {
+            flush = true;
+            lock.notifyAll();
+        }
+    }
+
+    public void close()
+    {
+        this.active = false;
+        flush();
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ *  PayloadCodec.java
+ *
+ *  Copyright (c) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ */
+package io.francitoshi.lettera;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the text of a note before it's encrypted, with a preset
+ * dictionary made of the last notes received from the friend. Short lines
+ * barely compress on their own, but they look a lot like the recent ones.
+ * <p>
+ * The friend has those notes too, as the notes it sent, so the payload only
+ * names them by the CRC32 of their text:
+ * <pre>
+ * 0x00 version flags count crc32[count] body
+ * </pre>
+ * The body is a zlib stream with DEFLATED, the UTF-8 text otherwise, and
+ * BUNDLE tells a {@link NoteBundle} from a single note, outside of any text
+ * the user wrote. A payload without the marker is a plain UTF-8 note, as sent
+ * by older versions or when compressing doesn't pay off, a text starting
+ * with 0x00 is always framed.
+ * <p>
+ * Every mail tells in the HEADER what its client decodes, a payload is only
+ * compressed for a friend whose client does, and with a dictionary only if
+ * the friend's history had every dictionary so far. A friend that writes
+ * from another device, with another history, stops announcing it after the
+ * first note it can't decompress.
+ *
+ * @author franci
+ */
+public class PayloadCodec
+{
+    static final byte MARKER = 0;
+    static final byte VERSION = 2;
+    static final int DEFLATED = 1;
+    static final int BUNDLE = 2;
+    static final String HEADER = "X-Lettera-Codec";
+    static final String WITH_DICTIONARY = "dictionary";
+
+    /**
+     * The dictionary named by a payload isn't among the notes of the chat.
+     */
+    public static class MissingDictionaryException extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        public MissingDictionaryException(String message)
+        {
+            super(message);
+        }
+    }
+
+    /**
+     * @param dictionary the dictionaries of the friend can be found here
+     * @return the value of HEADER for the mails of a chat
+     */
+    public static String getCapabilities(boolean dictionary)
+    {
+        return VERSION+(dictionary ? " "+WITH_DICTIONARY : "");
+    }
+
+    /**
+     * @param capabilities HEADER of the last note of the friend, or null
+     * @return true if the friend decodes compressed payloads
+     */
+    public static boolean canDeflate(String capabilities)
+    {
+        return capabilities!=null && capabilities.split(" ")[0].equals(Byte.toString(VERSION));
+    }
+
+    /**
+     * @param capabilities HEADER of the last note of the friend, or null
+     * @return true if the friend also finds the dictionaries
+     */
+    public static boolean canUseDictionary(String capabilities)
+    {
+        return canDeflate(capabilities) && Arrays.asList(capabilities.split(" ")).contains(WITH_DICTIONARY);
+    }
+    static final int MAX_DICTIONARY_NOTES = 8;
+    // deflate only looks back 32KB, and the end of the dictionary matters most
+    static final int MAX_DICTIONARY_BYTES = 16 * 1024;
+
+    /**
+     * @param notes the recent notes of a chat, oldest first
+     * @param friendAddress the address of the friend
+     * @return the texts of the last notes received from the friend, oldest
+     * first
+     */
+    public static List<String> getDictionary(List<Note> notes, String friendAddress)
+    {
+        ArrayList<String> texts = new ArrayList<>();
+        for(int i=notes.size()-1; i>=0 && texts.size()<MAX_DICTIONARY_NOTES; i--)
+        {
+            Note note = notes.get(i);
+            if(friendAddress.equalsIgnoreCase(note.from) && !note.text.isEmpty())
+            {
+                texts.add(0, note.text);
+            }
+        }
+        return texts;
+    }
+
+    /**
+     * @param text the text of the note, or of a bundle
+     * @param bundle the text is a {@link NoteBundle}
+     * @param dictionary texts the friend also has, see
+     * {@link #getDictionary(List, String)}, null if the friend can't
+     * decompress
+     * @return the payload to be encrypted, the plain UTF-8 text if that's
+     * shorter and it's a single note
+     */
+    public static byte[] encode(String text, boolean bundle, List<String> dictionary)
+    {
+        byte[] plain = text.getBytes(StandardCharsets.UTF_8);
+        if(dictionary==null)
+        {
+            return frame(plain, bundle);
+        }
+        byte[] dict = join(dictionary);
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try
+        {
+            if(dict.length>0)
+            {
+                deflater.setDictionary(dict);
+            }
+            deflater.setInput(plain);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(plain.length+64);
+            out.write(MARKER);
+            out.write(VERSION);
+            out.write(DEFLATED | (bundle ? BUNDLE : 0));
+            out.write(dict.length>0 ? dictionary.size() : 0);
+            if(dict.length>0)
+            {
+                for(String item : dictionary)
+                {
+                    out.write(ByteBuffer.allocate(4).putInt(crc32(item)).array(), 0, 4);
+                }
+            }
+            byte[] buffer = new byte[1024];
+            while(!deflater.finished())
+            {
+                int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+            }
+            byte[] payload = out.toByteArray();
+            return payload.length<plain.length ? payload : frame(plain, bundle);
+        }
+        finally
+        {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @return the text as is, but for a bundle or a text that starts like a
+     * frame
+     */
+    private static byte[] frame(byte[] plain, boolean bundle)
+    {
+        if(!bundle && (plain.length==0 || plain[0]!=MARKER))
+        {
+            return plain;
+        }
+        byte[] stored = new byte[4+plain.length];
+        stored[0] = MARKER;
+        stored[1] = VERSION;
+        stored[2] = (byte) (bundle ? BUNDLE : 0);
+        System.arraycopy(plain, 0, stored, 4, plain.length);
+        return stored;
+    }
+
+    /**
+     * @param payload the decrypted payload
+     * @return true if it carries a {@link NoteBundle}
+     */
+    public static boolean isBundle(byte[] payload)
+    {
+        return payload.length>2 && payload[0]==MARKER && (payload[2] & BUNDLE)!=0;
+    }
+
+    /**
+     * @param payload the decrypted payload
+     * @param candidates the texts of the recent notes of the chat, the
+     * dictionary is looked up among them
+     * @return the text of the note
+     * @throws MissingDictionaryException if a note of its dictionary isn't
+     * among the candidates
+     * @throws IOException if it's compressed and can't be decompressed
+     */
+    public static String decode(byte[] payload, Collection<String> candidates) throws IOException
+    {
+        if(payload.length==0 || payload[0]!=MARKER)
+        {
+            return new String(payload, StandardCharsets.UTF_8);
+        }
+        if(payload.length<4 || payload[1]!=VERSION)
+        {
+            throw new IOException("unknown payload version "+(payload.length>1 ? payload[1] : -1));
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(payload, 4, payload.length-4);
+        if((payload[2] & DEFLATED)==0)
+        {
+            return new String(payload, 4, payload.length-4, StandardCharsets.UTF_8);
+        }
+        int count = payload[3] & 0xff;
+        if(buffer.remaining()<count*4)
+        {
+            throw new IOException("truncated payload");
+        }
+        ArrayList<String> dictionary = new ArrayList<>();
+        if(count>0)
+        {
+            HashMap<Integer, String> byCrc = new HashMap<>();
+            for(String item : candidates)
+            {
+                byCrc.put(crc32(item), item);
+            }
+            for(int i=0;i<count;i++)
+            {
+                String item = byCrc.get(buffer.getInt());
+                if(item==null)
+                {
+                    throw new MissingDictionaryException("dictionary note not found");
+                }
+                dictionary.add(item);
+            }
+        }
+        Inflater inflater = new Inflater();
+        try
+        {
+            inflater.setInput(payload, buffer.position(), buffer.remaining());
+            ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length*4);
+            byte[] chunk = new byte[1024];
+            while(!inflater.finished())
+            {
+                int n = inflater.inflate(chunk);
+                if(n==0 && inflater.needsDictionary())
+                {
+                    inflater.setDictionary(join(dictionary));
+                }
+                else if(n==0 && inflater.needsInput())
+                {
+                    throw new IOException("truncated payload");
+                }
+                out.write(chunk, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+        catch (DataFormatException | IllegalArgumentException ex)
+        {
+            throw new IOException(ex);
+        }
+        finally
+        {
+            inflater.end();
+        }
+    }
+
+    private static byte[] join(List<String> texts)
+    {
+        StringBuilder sb = new StringBuilder();
+        for(String item : texts)
+        {
+            sb.append(item).append('\n');
+        }
+        byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+        if(bytes.length>MAX_DICTIONARY_BYTES)
+        {
+            byte[] tail = new byte[MAX_DICTIONARY_BYTES];
+            System.arraycopy(bytes, bytes.length-tail.length, tail, 0, tail.length);
+            return tail;
+        }
+        return bytes;
+    }
+
+    private static int crc32(String text)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(text.getBytes(StandardCharsets.UTF_8));
+        return (int) crc.getValue();
+    }
+}
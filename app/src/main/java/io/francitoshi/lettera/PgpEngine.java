@@ -0,0 +1,140 @@
+/*
+ *  PgpEngine.java
+ *
+ *  Copyright (c) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ */
+package io.francitoshi.lettera;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The OpenPGP operations a note goes through, whatever does the work.
+ *
+ * @author franci
+ */
+public interface PgpEngine
+{
+    /**
+     * The state of the signature of a message, Good is the only one a note is
+     * accepted with.
+     */
+    enum Signature
+    {
+        Good, Bad, Unknown, Expired, Revoked, Unsigned
+    };
+
+    /**
+     * The outcome for one message of a batch. The plaintext is only handed
+     * out when the message is integrity protected and carries a good
+     * signature. The signature is null when the message couldn't be
+     * decrypted at all, a wrong passphrase or a missing key, otherwise the
+     * message itself was found wanting and trying again won't help.
+     */
+    class Decrypted
+    {
+        public final byte[] plaintext;
+        public final Signature signature;
+        // fingerprint of the primary key of the signer, or null
+        public final String signer;
+        public final IOException error;
+
+        public Decrypted(byte[] plaintext, Signature signature, String signer, IOException error)
+        {
+            this.plaintext = plaintext;
+            this.signature = signature;
+            this.signer = signer;
+            this.error = error;
+        }
+
+        public boolean isDecrypted()
+        {
+            return plaintext!=null;
+        }
+
+        /**
+         * @return true if the message was read but rejected
+         */
+        public boolean isRejected()
+        {
+            return plaintext==null && signature!=null;
+        }
+
+        /**
+         * @param keyid the long keyid or the fingerprint of a primary key
+         * @return true if the signature is good and made by that key
+         */
+        public boolean isSignedBy(String keyid)
+        {
+            if(signature!=Signature.Good || signer==null || keyid==null || keyid.isEmpty())
+            {
+                return false;
+            }
+            String id = keyid.toUpperCase(Locale.ROOT);
+            // the keyid is the tail of a v4 fingerprint and the head of a v5 or v6 one
+            return signer.length()==40 ? signer.endsWith(id) : signer.startsWith(id);
+        }
+    }
+
+    /**
+     * @param data the plaintext
+     * @param armor ASCII armored or binary output
+     * @param from address of the signing key
+     * @param pass passphrase of the signing key
+     * @param to addresses of the recipients
+     * @return the OpenPGP message
+     */
+    byte[] encryptAndSign(byte[] data, boolean armor, String from, char[] pass, String... to) throws IOException, InterruptedException;
+
+    /**
+     * Decrypts many messages at once, a message that fails doesn't stop the
+     * others.
+     *
+     * @param data the OpenPGP messages, armored or binary
+     * @param pass passphrase of the decryption key
+     * @return a result for every message, in the same order
+     */
+    List<Decrypted> decryptAll(List<byte[]> data, char[] pass) throws InterruptedException;
+
+    /**
+     * @param data the OpenPGP message, armored or binary
+     * @param pass passphrase of the decryption key
+     * @return the plaintext and its signer
+     * @throws IOException if it can't be decrypted, has no integrity
+     * protection or the signature isn't good
+     */
+    default Decrypted decryptAndVerify(byte[] data, char[] pass) throws IOException, InterruptedException
+    {
+        Decrypted item = decryptAll(Collections.singletonList(data), pass).get(0);
+        if(!item.isDecrypted())
+        {
+            throw item.error;
+        }
+        return item;
+    }
+
+    /**
+     * Forgets any secret kept in memory, the next call needs the passphrase
+     * again.
+     */
+    default void lock()
+    {
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ *  PollScheduler.java
+ *
+ *  Copyright (c) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ */
+package io.francitoshi.lettera;
+
+import io.francitoshi.lettera.email.EmailProviders;
+import io.francitoshi.lettera.email.EmailSettings;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Delay between polls, short right after a note is sent or received and
+ * doubling while the conversation stays quiet, never below the minimum
+ * interval of the provider.
+ *
+ * @author franci
+ */
+public class PollScheduler
+{
+    static final long FAST_MILLIS = 2_000;
+    static final long MAX_MILLIS = 5 * 60_000;
+    static final long MIN_MILLIS = 1_000;
+    // time without activity before the delay doubles
+    static final long QUIET_MILLIS = 60_000;
+    static final double JITTER = 0.2;
+
+    // schedulers polling right now, with more than one their polls are spread out
+    private static final AtomicInteger POLLING = new AtomicInteger();
+
+    private final long minMillis;
+    private final long fastMillis;
+    private final long maxMillis;
+    private volatile long lastActivity = System.nanoTime();
+    private volatile boolean polling;
+
+    public PollScheduler(long minMillis, long fastMillis, long maxMillis)
+    {
+        this.minMillis = Math.max(MIN_MILLIS, minMillis);
+        this.fastMillis = Math.max(this.minMillis, fastMillis);
+        this.maxMillis = Math.max(this.fastMillis, maxMillis);
+    }
+
+    public PollScheduler(long minMillis)
+    {
+        this(minMillis, FAST_MILLIS, MAX_MILLIS);
+    }
+
+    /**
+     * Uses the pollSeconds of the provider whose server is that host.
+     *
+     * @param host imap or pop3 host
+     * @return a scheduler for that host
+     */
+    public static PollScheduler forHost(String host)
+    {
+        long minMillis = MIN_MILLIS;
+        try
+        {
+            EmailSettings settings = EmailProviders.findByHost(EmailProviders.load(), host);
+            if(settings!=null && settings.getPollSeconds()>0)
+            {
+                minMillis = TimeUnit.SECONDS.toMillis(settings.getPollSeconds());
+            }
+        }
+        catch (Exception ex)
+        {
+            System.getLogger(PollScheduler.class.getName()).log(System.Logger.Level.WARNING, (String) null, ex);
+        }
+        return new PollScheduler(minMillis);
+    }
+
+    /**
+     * A note was sent or received, the conversation is active.
+     */
+    public void activity()
+    {
+        lastActivity = System.nanoTime();
+    }
+
+    public long nextDelay()
+    {
+        long quiet = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-lastActivity);
+        int steps = (int) Math.min(30, quiet/QUIET_MILLIS);
+        long delay = Math.min(maxMillis, fastMillis<<steps);
+        if(POLLING.get()>1)
+        {
+            double jitter = ThreadLocalRandom.current().nextDouble(-JITTER, JITTER);
+            delay += (long) (delay*jitter);
+        }
+        return Math.max(minMillis, delay);
+    }
+
+    public void start()
+    {
+        if(!polling)
+        {
+            polling = true;
+            POLLING.incrementAndGet();
+        }
+    }
+
+    public void stop()
+    {
+        if(polling)
+        {
+            polling = false;
+            POLLING.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ *  Pop3Inbox.java
+ *
+ *  Copyright (c) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ */
+package io.francitoshi.lettera;
+
+import com.sun.mail.pop3.POP3Folder;
+import com.sun.mail.pop3.POP3Store;
+import io.nut.base.security.SecureChars;
+import jakarta.mail.FetchProfile;
+import jakarta.mail.Flags;
+import jakarta.mail.Folder;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.UIDFolder;
+import java.util.Properties;
+
+/**
+ * Reads the maildrop of an account over POP3, a POP3 session only sees the
+ * messages present when it started, so every cycle opens a new one.
+ *
+ * @author franci
+ */
+public class Pop3Inbox implements AutoCloseable
+{
+    static final int POP3S_PORT = 995;
+
+    // a single UIDL for the whole maildrop
+    private static final FetchProfile UIDL_PROFILE = new FetchProfile();
+    // TOP n 0, the headers are enough to route a message
+    private static final FetchProfile HEADER_PROFILE = new FetchProfile();
+    static
+    {
+        UIDL_PROFILE.add(UIDFolder.FetchProfileItem.UID);
+        HEADER_PROFILE.add(FetchProfile.Item.ENVELOPE);
+    }
+
+    private final String host;
+    private final int port;
+    private final boolean auth;
+    private final boolean starttls;
+    private final String username;
+    private final SecureChars password;
+    private final int mode;
+
+    private volatile POP3Store store;
+    private volatile POP3Folder folder;
+    private volatile boolean deleted;
+
+    public Pop3Inbox(String host, int port, boolean auth, boolean starttls, String username, SecureChars password)
+    {
+        this(host, port, auth, starttls, username, password, false);
+    }
+
+    /**
+     * @param readWrite the maildrop is opened READ_WRITE, needed to delete
+     * messages
+     */
+    public Pop3Inbox(String host, int port, boolean auth, boolean starttls, String username, SecureChars password, boolean readWrite)
+    {
+        this.host = host;
+        this.port = port;
+        this.auth = auth;
+        this.starttls = starttls;
+        this.username = username;
+        this.password = password;
+        this.mode = readWrite ? Folder.READ_WRITE : Folder.READ_ONLY;
+    }
+
+    public void connect() throws MessagingException
+    {
+        String protocol = port==POP3S_PORT ? "pop3s" : "pop3";
+        Properties props = new Properties();
+        props.setProperty("mail.store.protocol", protocol);
+        props.setProperty("mail."+protocol+".host", host);
+        props.setProperty("mail."+protocol+".port", Integer.toString(port));
+        props.setProperty("mail."+protocol+".auth", Boolean.toString(auth));
+        props.setProperty("mail."+protocol+".starttls.enable", Boolean.toString(starttls));
+
+        POP3Store pop3Store = (POP3Store) Session.getInstance(props).getStore(protocol);
+        pop3Store.connect(host, port, username, password.apply((pass) -> new String(pass)));
+        POP3Folder inbox = (POP3Folder) pop3Store.getFolder(ImapInbox.INBOX);
+        // READ_ONLY never sends DELE, the maildrop is left as it was
+        inbox.open(mode);
+        this.store = pop3Store;
+        this.folder = inbox;
+    }
+
+    public boolean isConnected()
+    {
+        POP3Folder inbox = this.folder;
+        return inbox!=null && inbox.isOpen();
+    }
+
+    /**
+     * Lists the maildrop and loads the UIDL of every message with a single
+     * command, nothing is downloaded yet.
+     *
+     * @return all the messages in the maildrop
+     * @throws MessagingException
+     */
+    public Message[] getMessages() throws MessagingException
+    {
+        Message[] messages = folder.getMessages();
+        if(messages.length>0)
+        {
+            folder.fetch(messages, UIDL_PROFILE);
+        }
+        return messages;
+    }
+
+    public String getUID(Message message) throws MessagingException
+    {
+        return folder.getUID(message);
+    }
+
+    /**
+     * Loads only the headers of the given messages with {@code TOP n 0}, the
+     * body is retrieved with RETR on the first getContent().
+     *
+     * @param messages the messages not seen before
+     * @throws MessagingException
+     */
+    public void fetchHeaders(Message[] messages) throws MessagingException
+    {
+        if(messages.length>0)
+        {
+            folder.fetch(messages, HEADER_PROFILE);
+        }
+    }
+
+    /**
+     * Marks the messages as deleted, POP3 has no folders to move them to, the
+     * DELE commands are sent when the session is closed.
+     *
+     * @param messages the messages to delete
+     * @throws MessagingException
+     */
+    public void delete(Message[] messages) throws MessagingException
+    {
+        for(Message item : messages)
+        {
+            item.setFlag(Flags.Flag.DELETED, true);
+            deleted = true;
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        POP3Folder inbox = this.folder;
+        POP3Store pop3Store = this.store;
+        boolean expunge = this.deleted;
+        this.folder = null;
+        this.store = null;
+        this.deleted = false;
+        try
+        {
+            if(inbox!=null && inbox.isOpen())
+            {
+                inbox.close(expunge);
+            }
+            if(pop3Store!=null)
+            {
+                pop3Store.close();
+            }
+        }
+        catch (MessagingException ex)
+        {
+            System.getLogger(Pop3Inbox.class.getName()).log(System.Logger.Level.DEBUG, (String) null, ex);
+        }
+    }
+}
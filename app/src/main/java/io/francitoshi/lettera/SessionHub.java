@@ -45,6 +45,10 @@ public class SessionHub extends Bee<Note>
         if(note.getSent()==0)
         {
             mailPush.send(note);
+            if(mailPoll!=null)
+            {
+                mailPoll.sync();
+            }
         }
     }
     
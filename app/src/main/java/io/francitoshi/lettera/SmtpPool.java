@@ -0,0 +1,326 @@
+/*
+ *  SmtpPool.java
+ *
+ *  Copyright (c) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ */
+package io.francitoshi.lettera;
+
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPTransport;
+import io.nut.base.security.SecureChars;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.SendFailedException;
+import jakarta.mail.Session;
+import jakarta.mail.Transport;
+import jakarta.mail.URLName;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeMessage;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps authenticated SMTP connections of an account open between sends, so
+ * every chat of the account sends on a warm connection instead of paying its
+ * own TLS and AUTH handshake.
+ *
+ * @author franci
+ */
+public class SmtpPool implements AutoCloseable
+{
+    static final int SMTPS_PORT = 465;
+    static final int MAX_IDLE = 2;
+    // NOOP often enough to survive the server idle timer, usually 5 minutes or more
+    static final long KEEPALIVE_MILLIS = 60_000;
+    // a connection unused for longer is closed, there's no point holding it forever
+    static final long IDLE_MILLIS = 10 * 60_000;
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor((r) ->
+    {
+        Thread th = new Thread(r, "SmtpPoolTimer");
+        th.setDaemon(true);
+        return th;
+    });
+
+    /**
+     * Knows whether the server accepted DATA, from then on the message may
+     * have been delivered even if the send fails.
+     */
+    private static class Smtp extends SMTPTransport
+    {
+        volatile boolean data;
+
+        Smtp(Session session, String protocol)
+        {
+            super(session, new URLName(protocol, null, -1, null, null, null), protocol, "smtps".equals(protocol));
+        }
+
+        @Override
+        protected OutputStream data() throws MessagingException
+        {
+            OutputStream out = super.data();
+            data = true;
+            return out;
+        }
+    }
+
+    private static class Idle
+    {
+        final Smtp transport;
+        final long lastUsed;
+
+        Idle(Smtp transport, long lastUsed)
+        {
+            this.transport = transport;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    private final String protocol;
+    private final String host;
+    private final int port;
+    private final String username;
+    private final SecureChars password;
+    private final String from;
+    private final Session session;
+    private final ArrayDeque<Idle> idle = new ArrayDeque<>();
+    private final ScheduledFuture<?> keepalive;
+    private volatile boolean closed;
+
+    public SmtpPool(String host, int port, boolean auth, boolean starttls, String username, SecureChars password, String from)
+    {
+        this.protocol = port==SMTPS_PORT ? "smtps" : "smtp";
+        this.host = host;
+        this.port = port;
+        this.username = username;
+        this.password = password;
+        this.from = from;
+        Properties props = new Properties();
+        props.setProperty("mail.transport.protocol", protocol);
+        props.setProperty("mail."+protocol+".host", host);
+        props.setProperty("mail."+protocol+".port", Integer.toString(port));
+        props.setProperty("mail."+protocol+".auth", Boolean.toString(auth));
+        props.setProperty("mail."+protocol+".starttls.enable", Boolean.toString(starttls));
+        this.session = Session.getInstance(props);
+        this.keepalive = TIMER.scheduleWithFixedDelay(this::keepalive, KEEPALIVE_MILLIS, KEEPALIVE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public SmtpPool(Account account, SecureChars password)
+    {
+        this(account.smtpHost, account.smtpPort, account.auth, account.starttls, account.username, password, account.address);
+    }
+
+    public void send(String subject, String body, String... to) throws MessagingException
+    {
+        MimeMessage message = newMessage(subject, to);
+        message.setText(body, "UTF-8");
+        send(message);
+    }
+
+    /**
+     * @return a message from the account with everything but the content
+     */
+    public MimeMessage newMessage(String subject, String... to) throws MessagingException
+    {
+        MimeMessage message = new MimeMessage(session);
+        message.setFrom(new InternetAddress(from));
+        message.setRecipients(Message.RecipientType.TO, InternetAddress.parse(String.join(",", to)));
+        message.setSubject(subject, "UTF-8");
+        message.setSentDate(new Date());
+        return message;
+    }
+
+    /**
+     * Sends on an idle connection if there is one, when it turns out to be
+     * dead before DATA the message is sent again once on a new connection.
+     * Once DATA was accepted the failure is thrown, sending again could
+     * deliver the message twice.
+     *
+     * @param message the message to send
+     * @throws MessagingException
+     */
+    public void send(MimeMessage message) throws MessagingException
+    {
+        message.saveChanges();
+        Smtp transport = borrow();
+        try
+        {
+            transport.data = false;
+            transport.sendMessage(message, message.getAllRecipients());
+        }
+        catch (MessagingException ex)
+        {
+            if(isRejected(ex))
+            {
+                // rejected by the server, a new connection won't help
+                release(transport);
+                throw ex;
+            }
+            close(transport);
+            if(transport.data)
+            {
+                throw ex;
+            }
+            System.getLogger(SmtpPool.class.getName()).log(System.Logger.Level.DEBUG, (String) null, ex);
+            transport = connect();
+            try
+            {
+                transport.sendMessage(message, message.getAllRecipients());
+            }
+            catch (MessagingException ex2)
+            {
+                close(transport);
+                throw ex2;
+            }
+        }
+        release(transport);
+    }
+
+    /**
+     * @return true if the server answered with an error, false if the
+     * connection went away, a dead connection shows as a send failed with
+     * no reply code
+     */
+    private static boolean isRejected(MessagingException ex)
+    {
+        if(ex instanceof SMTPSendFailedException)
+        {
+            return ((SMTPSendFailedException) ex).getReturnCode()>0;
+        }
+        return ex instanceof SendFailedException;
+    }
+
+    private Smtp borrow() throws MessagingException
+    {
+        for(Idle item; (item = pollIdle())!=null;)
+        {
+            // recently used connections are trusted without a NOOP, a failed send is retried anyway
+            if(System.currentTimeMillis()-item.lastUsed<KEEPALIVE_MILLIS || item.transport.isConnected())
+            {
+                return item.transport;
+            }
+            close(item.transport);
+        }
+        return connect();
+    }
+
+    private Idle pollIdle()
+    {
+        synchronized (idle)
+        {
+            return idle.pollFirst();
+        }
+    }
+
+    private Smtp connect() throws MessagingException
+    {
+        Smtp transport = new Smtp(session, protocol);
+        transport.connect(host, port, username, password.apply((pass) -> new String(pass)));
+        return transport;
+    }
+
+    private void release(Smtp transport)
+    {
+        synchronized (idle)
+        {
+            if(!closed && idle.size()<MAX_IDLE)
+            {
+                idle.addFirst(new Idle(transport, System.currentTimeMillis()));
+                return;
+            }
+        }
+        close(transport);
+    }
+
+    /**
+     * Sends NOOP on the idle connections so the server doesn't drop them, the
+     * dead ones and the ones unused for too long are closed.
+     */
+    private void keepalive()
+    {
+        ArrayList<Idle> list;
+        synchronized (idle)
+        {
+            list = new ArrayList<>(idle);
+            idle.clear();
+        }
+        long now = System.currentTimeMillis();
+        ArrayList<Idle> alive = new ArrayList<>();
+        for(Idle item : list)
+        {
+            if(!closed && now-item.lastUsed<IDLE_MILLIS && item.transport.isConnected())
+            {
+                alive.add(item);
+            }
+            else
+            {
+                close(item.transport);
+            }
+        }
+        synchronized (idle)
+        {
+            for(Idle item : alive)
+            {
+                if(closed || idle.size()>=MAX_IDLE)
+                {
+                    close(item.transport);
+                }
+                else
+                {
+                    idle.addLast(item);
+                }
+            }
+        }
+    }
+
+    private static void close(Transport transport)
+    {
+        try
+        {
+            transport.close();
+        }
+        catch (MessagingException ex)
+        {
+            System.getLogger(SmtpPool.class.getName()).log(System.Logger.Level.DEBUG, (String) null, ex);
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        this.closed = true;
+        this.keepalive.cancel(false);
+        ArrayList<Idle> list;
+        synchronized (idle)
+        {
+            list = new ArrayList<>(idle);
+            idle.clear();
+        }
+        for(Idle item : list)
+        {
+            close(item.transport);
+        }
+    }
+}
@@ -53,6 +53,8 @@ import jakarta.mail.internet.AddressException;
 import jakarta.mail.internet.InternetAddress;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.security.KeyStoreException;
@@ -64,10 +66,9 @@ import java.util.Locale;
 import java.util.ResourceBundle;
 import java.util.StringJoiner;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import org.jline.builtins.Completers;
 import static org.jline.builtins.Completers.TreeCompleter.node;
 import org.jline.reader.Completer;
@@ -77,6 +78,7 @@ import org.jline.reader.LineReaderBuilder;
 import org.jline.reader.UserInterruptException;
 import org.jline.reader.impl.completer.StringsCompleter;
 import org.jline.terminal.Terminal;
+import org.jline.terminal.TerminalBuilder;
 
 /**
  *
@@ -135,14 +137,42 @@ public class TerminalChat extends Lettera
     private static final String _LIST_FRIENDS = "/list-friends";
     private static final String _LIST_CHATS = "/list-chats";
     private static final String _CHAT = "/chat";
+    private static final String _GROUP = "/group";
     private static final String _UNREAD = "/unread";
     private static final String _WAIT_MESSAGE = "/wait-message";
     private static final String _PASSPHRASE = "/passphrase";
+    private static final String _LOCK = "/lock";
     private static final String _EXIT = "/exit";
 
     
     private final Object waitMessageLock = new Object();
 
+    /**
+     * Runs the interactive chat. It lives here and not in Main so the one-shot
+     * commands never load the terminal classes.
+     *
+     * @param network awaited before the first connection
+     */
+    static void interactive(boolean mock, InputStream input, OutputStream output, File configFile, File keystoreFile, File letteraDb, SecureChars passphrase, boolean debug, boolean wizard, boolean lite, CompletableFuture<Void> network) throws Exception
+    {
+        try (Terminal terminal = mock ? new MockTerminal(input, output) : TerminalBuilder.builder().build())
+        {
+            try(TerminalChat chat = new TerminalChat(terminal, configFile, keystoreFile, letteraDb, passphrase, mock, debug).open())
+            {
+                await(network);
+                chat.setWizard(wizard);
+                if(lite)
+                {
+                    System.err.println("NOT YET IMPLEMENTED");
+                }
+                else
+                {
+                    chat.run();
+                }
+            }
+        }
+    }
+
     @Override
     public TerminalChat open() throws IOException, Base64DecoderException, InterruptedException, KeyStoreException, NoSuchAlgorithmException, CertificateException, Exception
     {
@@ -182,7 +212,7 @@ public class TerminalChat extends Lettera
                     }
                     else if (line.startsWith(_ABOUT))
                     {
-                        this.out.println(Main.WELCOME_TXT);
+                        this.out.println(Main.Texts.WELCOME_TXT);
                     }
                     else if (line.startsWith(_SETUP_ACCOUNT))
                     {
@@ -230,6 +260,10 @@ public class TerminalChat extends Lettera
                             startChat(setupChat(), Mode.ReadWrite);
                         }
                     }
+                    else if (line.startsWith(_GROUP))
+                    {
+                        startChat(setupGroup(), Mode.ReadWrite);
+                    }
                     else if (line.startsWith(_UNREAD))
                     {
                         //SendGmail.send("flikxxi@gmail.com", "Subject", "body");
@@ -241,6 +275,11 @@ public class TerminalChat extends Lettera
                         reader.printAbove("");
                         break;
                     }
+                    else if (line.startsWith(_LOCK))
+                    {
+                        lock();
+                        reader.printAbove("Secrets wiped from memory.");
+                    }
                     else if (line.startsWith(_WAIT_MESSAGE))
                     {
                         synchronized (waitMessageLock)
@@ -393,8 +432,10 @@ public class TerminalChat extends Lettera
         {
             list.add(node((Object[]) sessions));
         }
+        list.add(_GROUP);
 
         list.add(_UNREAD);
+        list.add(_LOCK);
         list.add(_WAIT_MESSAGE);
         
         list.add(_EXIT);
@@ -437,24 +478,6 @@ public class TerminalChat extends Lettera
     }
     
             
-    static final Pattern EMAIL_PATTERN1 = Pattern.compile(".*<(.+@.+)>.*");
-    static final Pattern EMAIL_PATTERN2 = Pattern.compile("([^<>]+@[^<>]+)");
-
-    private static String getEmail(String uid)
-    {
-        Matcher m1 = EMAIL_PATTERN1.matcher(uid);
-        if(m1.matches())
-        {
-            return m1.group(1);
-        }
-        Matcher m2 = EMAIL_PATTERN2.matcher(uid);
-        if(m2.matches())
-        {
-            return m2.group(1);
-        }
-        return null;
-    }
-    
     private static String[] getEmails(MainKey[] keys)
     {
         ArrayList<String> emails = new ArrayList<>();
@@ -462,7 +485,7 @@ public class TerminalChat extends Lettera
         {
             for(UserId uid : item.getUids())
             {
-                String email = getEmail(uid.uid);
+                String email = KeyringIndex.getEmail(uid.uid);
                 if(email!=null)
                 {
                     emails.add(email);
@@ -613,7 +636,7 @@ public class TerminalChat extends Lettera
         String text = keyid;
         try
         {
-            SecKey[] sec = GPG.getSecKeys(name, address);
+            SecKey[] sec = keyring.getSecKeys(address, name);
             if(sec.length>0)
             {
                 SubKey main = sec[0].getMain();
@@ -683,7 +706,7 @@ public class TerminalChat extends Lettera
         String text = keyid;
         try
         {
-            PubKey[] pub = GPG.getPubKeys(name, address);
+            PubKey[] pub = keyring.getPubKeys(address, name);
             if(pub.length>0)
             {
                 SubKey main = pub[0].getMain();
@@ -754,7 +777,7 @@ public class TerminalChat extends Lettera
     private void importAccounts() throws IOException, InterruptedException, GeneralSecurityException 
     {
         ansiTitle("import-accounts");
-        SecKey[] items = GPG.getSecKeys();
+        SecKey[] items = keyring.getSecKeys();
         for(int r=0;r<items.length;r++)
         {
             UserId[] uids = items[r].getUids();
@@ -774,7 +797,7 @@ public class TerminalChat extends Lettera
     private void importFriends() throws IOException, InterruptedException, GeneralSecurityException
     {
         ansiTitle("import-friends");
-        PubKey[] items = GPG.getPubKeys();
+        PubKey[] items = keyring.getPubKeys();
         for(int r=0;r<items.length;r++)
         {
             UserId[] uids = items[r].getUids();
@@ -852,6 +875,54 @@ public class TerminalChat extends Lettera
         return chat.id;
     }
 
+    private String setupGroup()
+    {
+        ansiTitle("setup-group");
+        
+        LineReader lineReader = buildLineReader(getAccountCompleter());
+        String accountName = lineReader.readLine("account: ");
+        if(accountName.isEmpty())
+        {
+            return null;
+        }
+
+        Account account = this.db.getAccount(accountName);
+        if(account==null)
+        {
+            return null;
+        }
+        lineReader.printAbove(account.name+" / "+account.address+" / "+account.keyid);
+
+        lineReader.printAbove("Every member must set up the group with the same id (letters, digits, '_' or '.').");
+        String groupId = lineReader.readLine("group id: ");
+        if(!GroupChat.isValidId(groupId))
+        {
+            return null;
+        }
+
+        lineReader = buildLineReader(getFriendCompleter());
+        ArrayList<Friend> members = new ArrayList<>();
+        for(String friendName; !(friendName = lineReader.readLine("member (empty to finish): ")).isEmpty();)
+        {
+            Friend friend = this.db.getFriend(friendName);
+            if(friend!=null)
+            {
+                lineReader.printAbove(friend.name+" / "+friend.address+" / "+friend.keyid);
+                members.add(friend);
+            }
+        }
+        if(members.isEmpty())
+        {
+            return null;
+        }
+
+        GroupChat chat = GroupChat.build(account, groupId, members.toArray(new Friend[0]));
+        
+        this.db.putChat(chat);
+        this.db.commit();
+        return chat.id;
+    }
+
     private String readLineEmail(LineReader lineReader, String prompt, String buffer)
     {
         for(;;)
@@ -977,11 +1048,10 @@ public class TerminalChat extends Lettera
     {
         try
         {
-            if (message.isMimeType("text/plain"))
+            if (message.isMimeType("text/plain") || message.isMimeType("multipart/encrypted"))
             {
-                String body = (String) message.getContent();
-                GPG.DecryptStatus status = new GPG.DecryptStatus();
-                byte[] plaintext = GPG.decryptAndVerify(body.getBytes(UTF8), gpgPass, status);
+                byte[] ciphertext = MailPoll.getCiphertext(message);
+                byte[] plaintext = pgp.decryptAndVerify(ciphertext, gpgPass).plaintext;
 //                currentChat.friendKeyid
                 reader.printAbove(currentChat.friendName+"> "+new String(plaintext,UTF8));
             }
@@ -1052,6 +1122,11 @@ public class TerminalChat extends Lettera
     @Override
     protected void receive(Note note)
     {
-        reader.printAbove(note.text);
+        // notes of other chats of the account are already stored
+        Chat chat = currentChat;
+        if(chat!=null && chat.id.equals(note.session))
+        {
+            reader.printAbove(note.text);
+        }
     }
 }
@@ -51,6 +51,23 @@ public class EmailProviders
         return result;
     }
     
+    public static EmailSettings findByHost(Map<String, EmailSettings> providers, String host)
+    {
+        for(EmailSettings item : providers.values())
+        {
+            if(isHost(item.getImap(), host) || isHost(item.getPop3(), host) || isHost(item.getSmtp(), host))
+            {
+                return item;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isHost(ServerSettings server, String host)
+    {
+        return server!=null && server.getHost()!=null && server.getHost().equalsIgnoreCase(host);
+    }
+    
     public static Map<String, EmailSettings> load() throws Exception
     {
         try (InputStream in = EmailProviders.class.getResourceAsStream("email-providers.yml"))
@@ -27,6 +27,7 @@ public class EmailSettings
     private ServerSettings smtp;
     private ServerSettings imap;
     private ServerSettings pop3;
+    private int pollSeconds;
 
     public EmailSettings()
     {
@@ -71,4 +72,14 @@ public class EmailSettings
     {
         this.pop3 = pop3;
     }
+
+    public int getPollSeconds()
+    {
+        return pollSeconds;
+    }
+
+    public void setPollSeconds(int pollSeconds)
+    {
+        this.pollSeconds = pollSeconds;
+    }
 }
@@ -0,0 +1,55 @@
+/*
+ *  Argon2CalibratorTest.java
+ *
+ *  Copyright (c) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ */
+package io.francitoshi.lettera;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class Argon2CalibratorTest
+{
+    /**
+     * Test of calibrate method, of class Argon2Calibrator.
+     */
+    @Test
+    public void testCalibrate()
+    {
+        // 1 ms per MiB and pass, memory grows while 3 passes fit in the target
+        Argon2Calibrator instance = new Argon2Calibrator((t, m, p) -> (long) t*m/1024, 4, Argon2Calibrator.MAX_MEMORY_KB);
+        Argon2Calibrator.Params params = instance.calibrate(1000);
+        assertEquals(256*1024, params.memoryKB);
+        assertEquals(3, params.iterations);
+        assertEquals(4, params.parallelism);
+        assertTrue(params.millis<=1000);
+
+        // too slow for the target, the minimum is used anyway
+        instance = new Argon2Calibrator((t, m, p) -> (long) t*m, 1, Argon2Calibrator.MAX_MEMORY_KB);
+        params = instance.calibrate(1000);
+        assertEquals(Argon2Calibrator.MIN_MEMORY_KB, params.memoryKB);
+        assertEquals(1, params.iterations);
+
+        // fast but short of memory, the iterations make up for it
+        instance = new Argon2Calibrator((t, m, p) -> t, 2, 64*1024);
+        params = instance.calibrate(1000);
+        assertEquals(64*1024, params.memoryKB);
+        assertEquals(Argon2Calibrator.MAX_ITERATIONS, params.iterations);
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ *  BcPgpEngineTest.java
+ *
+ *  Copyright (c) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ */
+package io.francitoshi.lettera;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import org.bouncycastle.bcpg.HashAlgorithmTags;
+import org.bouncycastle.bcpg.PublicKeyAlgorithmTags;
+import org.bouncycastle.bcpg.PublicKeyPacket;
+import org.bouncycastle.bcpg.SymmetricKeyAlgorithmTags;
+import org.bouncycastle.crypto.generators.RSAKeyPairGenerator;
+import org.bouncycastle.crypto.params.RSAKeyGenerationParameters;
+import org.bouncycastle.openpgp.PGPEncryptedDataGenerator;
+import org.bouncycastle.openpgp.PGPKeyRingGenerator;
+import org.bouncycastle.openpgp.PGPLiteralData;
+import org.bouncycastle.openpgp.PGPLiteralDataGenerator;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPPublicKeyRing;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.bouncycastle.openpgp.PGPSignatureGenerator;
+import org.bouncycastle.openpgp.operator.bc.BcPBESecretKeyEncryptorBuilder;
+import org.bouncycastle.openpgp.operator.bc.BcKeyFingerprintCalculator;
+import org.bouncycastle.openpgp.operator.bc.BcPGPContentSignerBuilder;
+import org.bouncycastle.openpgp.operator.bc.BcPGPDataEncryptorBuilder;
+import org.bouncycastle.openpgp.operator.bc.BcPGPDigestCalculatorProvider;
+import org.bouncycastle.openpgp.operator.bc.BcPGPKeyPair;
+import org.bouncycastle.openpgp.operator.bc.BcPublicKeyKeyEncryptionMethodGenerator;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class BcPgpEngineTest
+{
+    /**
+     * Writes a GnuPG 1.x style home, pubring.gpg and secring.gpg.
+     */
+    static void generate(File home, String uid, char[] pass) throws Exception
+    {
+        PGPKeyRingGenerator generator = getGenerator(newPair(), uid, pass);
+        try (OutputStream out = new FileOutputStream(new File(home, "pubring.gpg"), true))
+        {
+            generator.generatePublicKeyRing().encode(out);
+        }
+        try (OutputStream out = new FileOutputStream(new File(home, "secring.gpg"), true))
+        {
+            generator.generateSecretKeyRing().encode(out);
+        }
+    }
+
+    static BcPGPKeyPair newPair() throws Exception
+    {
+        RSAKeyPairGenerator rsa = new RSAKeyPairGenerator();
+        rsa.init(new RSAKeyGenerationParameters(BigInteger.valueOf(0x10001), new SecureRandom(), 2048, 12));
+        return new BcPGPKeyPair(PublicKeyPacket.VERSION_4, PublicKeyAlgorithmTags.RSA_GENERAL, rsa.generateKeyPair(), new Date());
+    }
+
+    static PGPKeyRingGenerator getGenerator(BcPGPKeyPair pair, String uid, char[] pass) throws Exception
+    {
+        return new PGPKeyRingGenerator(PGPSignature.POSITIVE_CERTIFICATION, pair, uid,
+                new BcPGPDigestCalculatorProvider().get(HashAlgorithmTags.SHA1), null, null,
+                new BcPGPContentSignerBuilder(PublicKeyAlgorithmTags.RSA_GENERAL, HashAlgorithmTags.SHA256),
+                new BcPBESecretKeyEncryptorBuilder(SymmetricKeyAlgorithmTags.AES_256).build(pass));
+    }
+
+    /**
+     * Test of encryptAndSign and decryptAndVerify methods, of class BcPgpEngine.
+     */
+    @Test
+    public void testEncryptDecrypt() throws Exception
+    {
+        File home = Files.createTempDirectory("gnupg").toFile();
+        char[] pass = "alice passphrase".toCharArray();
+        generate(home, "Alice <alice@localhost>", pass);
+
+        BcPgpEngine engine = new BcPgpEngine(home);
+        byte[] data = "hello bob".getBytes(StandardCharsets.UTF_8);
+        for(boolean armor : new boolean[]{true, false})
+        {
+            byte[] ciphertext = engine.encryptAndSign(data, armor, "alice@localhost", pass, "Alice@LocalHost");
+            PgpEngine.Decrypted decrypted = engine.decryptAndVerify(ciphertext, pass);
+            assertArrayEquals(data, decrypted.plaintext);
+            assertTrue(decrypted.isSignedBy(decrypted.signer.substring(24)));
+            // the unlocked key is only reused with the same passphrase
+            assertThrows(IOException.class, () -> engine.decryptAndVerify(ciphertext, "wrong".toCharArray()));
+        }
+        assertThrows(IOException.class, () -> engine.encryptAndSign(data, true, "alice@localhost", pass, "bob@localhost"));
+    }
+
+    /**
+     * Test of decryptAll method, of class BcPgpEngine, an unsigned message is
+     * rejected.
+     */
+    @Test
+    public void testUnsigned() throws Exception
+    {
+        File home = Files.createTempDirectory("gnupg").toFile();
+        char[] pass = "alice passphrase".toCharArray();
+        generate(home, "Alice <alice@localhost>", pass);
+        PGPPublicKey key = null;
+        try (InputStream in = new FileInputStream(new File(home, "pubring.gpg")))
+        {
+            for(Iterator<PGPPublicKey> it = new PGPPublicKeyRing(in, new BcKeyFingerprintCalculator()).getPublicKeys(); it.hasNext();)
+            {
+                key = it.next();
+            }
+        }
+        byte[] data = "hello bob".getBytes(StandardCharsets.UTF_8);
+        PGPEncryptedDataGenerator generator = new PGPEncryptedDataGenerator(new BcPGPDataEncryptorBuilder(SymmetricKeyAlgorithmTags.AES_256).setWithIntegrityPacket(true));
+        generator.addMethod(new BcPublicKeyKeyEncryptionMethodGenerator(key));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (OutputStream encrypted = generator.open(bytes, new byte[4096]);
+             OutputStream plain = new PGPLiteralDataGenerator().open(encrypted, PGPLiteralData.BINARY, "", data.length, new Date()))
+        {
+            plain.write(data);
+        }
+
+        BcPgpEngine engine = new BcPgpEngine(home);
+        PgpEngine.Decrypted decrypted = engine.decryptAll(Collections.singletonList(bytes.toByteArray()), pass).get(0);
+        assertFalse(decrypted.isDecrypted());
+        assertTrue(decrypted.isRejected());
+        assertEquals(PgpEngine.Signature.Unsigned, decrypted.signature);
+    }
+
+    /**
+     * Test of decryptAll method, of class BcPgpEngine, a subkey added to the
+     * keyring without a binding signature of its primary key doesn't sign
+     * for it.
+     */
+    @Test
+    public void testUnboundSubkey() throws Exception
+    {
+        File home = Files.createTempDirectory("gnupg").toFile();
+        char[] pass = "alice passphrase".toCharArray();
+        generate(home, "Alice <alice@localhost>", pass);
+        File pubring = new File(home, "pubring.gpg");
+        PGPPublicKeyRing alice;
+        try (InputStream in = new FileInputStream(pubring))
+        {
+            alice = new PGPPublicKeyRing(in, new BcKeyFingerprintCalculator());
+        }
+        // bound by mallory's primary key, not by alice's
+        BcPGPKeyPair subkey = newPair();
+        PGPKeyRingGenerator mallory = getGenerator(newPair(), "Mallory <mallory@localhost>", pass);
+        mallory.addSubKey(subkey);
+        PGPPublicKey injected = mallory.generatePublicKeyRing().getPublicKey(subkey.getPublicKey().getKeyIdentifier());
+        try (OutputStream out = new FileOutputStream(pubring))
+        {
+            PGPPublicKeyRing.insertPublicKey(alice, injected).encode(out);
+        }
+
+        byte[] data = "hello bob".getBytes(StandardCharsets.UTF_8);
+        PGPSignatureGenerator signature = new PGPSignatureGenerator(new BcPGPContentSignerBuilder(PublicKeyAlgorithmTags.RSA_GENERAL, HashAlgorithmTags.SHA256), subkey.getPublicKey());
+        signature.init(PGPSignature.BINARY_DOCUMENT, subkey.getPrivateKey());
+        PGPEncryptedDataGenerator generator = new PGPEncryptedDataGenerator(new BcPGPDataEncryptorBuilder(SymmetricKeyAlgorithmTags.AES_256).setWithIntegrityPacket(true));
+        generator.addMethod(new BcPublicKeyKeyEncryptionMethodGenerator(alice.getPublicKey()));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (OutputStream encrypted = generator.open(bytes, new byte[4096]))
+        {
+            signature.generateOnePassVersion(false).encode(encrypted);
+            try (OutputStream plain = new PGPLiteralDataGenerator().open(encrypted, PGPLiteralData.BINARY, "", data.length, new Date()))
+            {
+                plain.write(data);
+            }
+            signature.update(data);
+            signature.generate().encode(encrypted);
+        }
+
+        BcPgpEngine engine = new BcPgpEngine(home);
+        PgpEngine.Decrypted decrypted = engine.decryptAll(Collections.singletonList(bytes.toByteArray()), pass).get(0);
+        assertTrue(decrypted.isRejected());
+        assertEquals(PgpEngine.Signature.Unknown, decrypted.signature);
+        assertFalse(decrypted.isSignedBy(Long.toHexString(alice.getPublicKey().getKeyIdentifier().getKeyId())));
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ *  BulkSenderTest.java
+ *
+ *  Copyright (c) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ */
+package io.francitoshi.lettera;
+
+import com.icegreen.greenmail.configuration.GreenMailConfiguration;
+import com.icegreen.greenmail.junit5.GreenMailExtension;
+import com.icegreen.greenmail.util.ServerSetupTest;
+import jakarta.mail.internet.MimeMessage;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+public class BulkSenderTest
+{
+    static final int THREADS = 2;
+    static final int NOTES = 4*THREADS;
+
+    @RegisterExtension
+    static GreenMailExtension greenMail = new GreenMailExtension(ServerSetupTest.SMTP_POP3_IMAP)
+            .withConfiguration(GreenMailConfiguration.aConfig()
+            .withUser(MailPollTest.ALICE_LOCALHOST, MailPollTest.ALICE, MailPollTest.ALICE_PASSWORD));
+
+    /**
+     * Doesn't encrypt, the even notes just take longer than the odd ones so
+     * they finish out of order.
+     */
+    static class SlowPgp implements PgpEngine
+    {
+        final List<String> finished = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public byte[] encryptAndSign(byte[] data, boolean armor, String from, char[] pass, String... to) throws IOException, InterruptedException
+        {
+            String text = PayloadCodec.decode(data, Collections.emptyList());
+            Thread.sleep(Integer.parseInt(text)%2==0 ? 200 : 10);
+            finished.add(text);
+            return data;
+        }
+
+        @Override
+        public List<Decrypted> decryptAll(List<byte[]> data, char[] pass)
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Test of send method, of class BulkSender.
+     */
+    @Test
+    public void testSend() throws Exception
+    {
+        KeyWrapper keyWrapper = new KeyWrapper(null, new SecureRandom().generateSeed(32));
+        String gpgPass = keyWrapper.wrapKey(Lettera.GPG_PURPOSE, MailPollTest.ALICE, "alice-gpg-passphrase".toCharArray());
+        Account account = new Account(MailPollTest.ALICE, MailPollTest.ALICE_LOCALHOST, true, false, "localhost", greenMail.getSmtp().getPort(), null, 0, null, 0, MailPollTest.ALICE, null, MailPollTest.ALICE_BOB.accountKeyid, gpgPass);
+        SlowPgp pgp = new SlowPgp();
+
+        AtomicInteger read = new AtomicInteger();
+        AtomicInteger ahead = new AtomicInteger();
+        List<BulkSender.Result> results = new ArrayList<>();
+        Iterator<String> texts = new Iterator<String>()
+        {
+            @Override
+            public boolean hasNext()
+            {
+                return read.get()<NOTES;
+            }
+
+            @Override
+            public String next()
+            {
+                int i = read.getAndIncrement();
+                ahead.accumulateAndGet(i+1-results.size(), Math::max);
+                return Integer.toString(i);
+            }
+        };
+        try(SmtpPool smtp = SmtpPoolTest.getPool(greenMail.getSmtp().getPort(), true))
+        {
+            BulkSender sender = new BulkSender(MailPollTest.ALICE_BOB, account, keyWrapper, pgp, smtp, null, "", false, THREADS);
+            sender.send(texts, results::add);
+        }
+
+        // never more than the window is read ahead of what was sent
+        assertEquals(2*THREADS, ahead.get());
+        // the encryption finished out of order
+        assertEquals(NOTES, pgp.finished.size());
+        List<String> inOrder = IntStream.range(0, NOTES).mapToObj(Integer::toString).toList();
+        assertNotEquals(inOrder, new ArrayList<>(pgp.finished));
+        // but the results and the mails follow the input
+        assertEquals(NOTES, results.size());
+        MimeMessage[] mails = greenMail.getReceivedMessages();
+        assertEquals(NOTES, mails.length);
+        for(int i=0;i<NOTES;i++)
+        {
+            assertEquals(i, results.get(i).index);
+            assertTrue(results.get(i).isSent());
+            byte[] body = ((String) mails[i].getContent()).getBytes(StandardCharsets.UTF_8);
+            assertEquals(Integer.toString(i), PayloadCodec.decode(body, Collections.emptyList()));
+        }
+    }
+}
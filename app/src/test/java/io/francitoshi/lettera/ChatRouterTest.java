@@ -0,0 +1,93 @@
+/*
+ *  ChatRouterTest.java
+ *
+ *  Copyright (c) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ */
+package io.francitoshi.lettera;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import org.junit.jupiter.api.Test;
+
+public class ChatRouterTest
+{
+    static final Chat ALICE_BOB = new Chat("alice", "alice@localhost", "AAAA1111", "bob", "bob@localhost", "BBBB2222", null);
+    static final Chat ALICE_CAROL = new Chat("alice", "alice@localhost", "AAAA1111", "carol", "carol@localhost", "CCCC3333", "0123-4567");
+    
+    /**
+     * Test of route method, of class ChatRouter.
+     */
+    @Test
+    public void testRoute()
+    {
+        ChatRouter router = new ChatRouter(ALICE_BOB, ALICE_CAROL);
+        assertEquals(2, router.size());
+
+        // notes are tagged by the sender, so bob writes "lettera BBBB2222-AAAA1111"
+        assertSame(ALICE_BOB, router.route("bob@localhost", "alice@localhost", ALICE_BOB.getReceivedTag()));
+        assertSame(ALICE_BOB, router.route("Bob@LocalHost", "alice@localhost", ALICE_BOB.getReceivedTag()));
+        assertSame(ALICE_CAROL, router.route("carol@localhost", "alice@localhost", ALICE_CAROL.getReceivedTag()+ALICE_CAROL.mutualAuthProof));
+
+        assertNull(router.route("alice@localhost", "bob@localhost", ALICE_BOB.getSentTag()));
+        assertNull(router.route("carol@localhost", "alice@localhost", ALICE_BOB.getReceivedTag()));
+        assertNull(router.route("bob@localhost", "alice@localhost", "lettera"));
+        assertNull(router.route("bob@localhost", "alice@localhost", "hello"));
+        assertNull(router.route("bob@localhost", "alice@localhost", null));
+    }
+
+    /**
+     * Test of route method, of class ChatRouter, with a group chat.
+     */
+    @Test
+    public void testRouteGroup()
+    {
+        GroupChat group = new GroupChat("alice", "alice@localhost", "AAAA1111", "team", new String[]{"bob", "carol"}, new String[]{"bob@localhost", "carol@localhost"}, new String[]{"BBBB2222", "CCCC3333"});
+        ChatRouter router = new ChatRouter(ALICE_BOB, group);
+        assertEquals(3, router.size());
+
+        // bob writes to everybody "lettera BBBB2222-@team"
+        assertSame(group, router.route("bob@localhost", "alice@localhost", group.getReceivedTag(0)));
+        assertSame(group, router.route("carol@localhost", "alice@localhost", group.getReceivedTag(1)));
+        assertSame(ALICE_BOB, router.route("bob@localhost", "alice@localhost", ALICE_BOB.getReceivedTag()));
+
+        assertNull(router.route("bob@localhost", "alice@localhost", "lettera BBBB2222-@other"));
+        assertNull(router.route("dave@localhost", "alice@localhost", "lettera DDDD4444-@team"));
+        assertNull(router.route("bob@localhost", "alice@localhost", group.getReceivedTag(1)));
+
+        router.remove(group);
+        assertEquals(1, router.size());
+    }
+
+    /**
+     * Test of put method, of class ChatRouter.
+     */
+    @Test
+    public void testPut()
+    {
+        ChatRouter router = new ChatRouter();
+        assertNull(router.route("bob@localhost", "alice@localhost", ALICE_BOB.getReceivedTag()));
+
+        router.put(ALICE_BOB);
+        assertSame(ALICE_BOB, router.route("bob@localhost", "alice@localhost", ALICE_BOB.getReceivedTag()));
+
+        router.remove(ALICE_BOB);
+        assertNull(router.route("bob@localhost", "alice@localhost", ALICE_BOB.getReceivedTag()));
+        assertEquals(0, router.size());
+    }
+}
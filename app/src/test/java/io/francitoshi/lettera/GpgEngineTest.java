@@ -0,0 +1,96 @@
+/*
+ *  GpgEngineTest.java
+ *
+ *  Copyright (c) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ */
+package io.francitoshi.lettera;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class GpgEngineTest
+{
+    static final String FPR = "761771ACB36D0EB1B1E494F94B8971EEBCB908E4";
+    static final List<String> OPENED = Arrays.asList("ENC_TO A2CD4D3FC5D35EAC 18 0", "BEGIN_DECRYPTION", "DECRYPTION_INFO 2 9 0", "PLAINTEXT 62 1792304420");
+    static final List<String> SIGNED = Arrays.asList("NEWSIG bob@localhost", "GOODSIG 4B8971EEBCB908E4 Bob <bob@localhost>", "VALIDSIG "+FPR+" 2026-10-18 1792304420 0 4 0 1 10 00 "+FPR);
+    static final List<String> DONE = Arrays.asList("DECRYPTION_OKAY", "GOODMDC", "END_DECRYPTION");
+
+    @SafeVarargs
+    static List<String> status(List<String>... parts)
+    {
+        ArrayList<String> list = new ArrayList<>();
+        for(List<String> item : parts)
+        {
+            list.addAll(item);
+        }
+        return list;
+    }
+
+    /**
+     * Test of parse method, of class GpgEngine.
+     */
+    @Test
+    public void testParse()
+    {
+        byte[] plaintext = "hola".getBytes(StandardCharsets.UTF_8);
+
+        PgpEngine.Decrypted good = GpgEngine.parse(status(OPENED, SIGNED, DONE), plaintext);
+        assertArrayEquals(plaintext, good.plaintext);
+        assertTrue(good.isSignedBy("4B8971EEBCB908E4"));
+        assertFalse(good.isSignedBy("A2CD4D3FC5D35EAC"));
+
+        PgpEngine.Decrypted unsigned = GpgEngine.parse(status(OPENED, DONE), plaintext);
+        assertTrue(unsigned.isRejected());
+        assertEquals(PgpEngine.Signature.Unsigned, unsigned.signature);
+
+        PgpEngine.Decrypted bad = GpgEngine.parse(status(OPENED, Arrays.asList("NEWSIG", "BADSIG 4B8971EEBCB908E4 Bob"), DONE), plaintext);
+        assertEquals(PgpEngine.Signature.Bad, bad.signature);
+        assertNull(bad.plaintext);
+
+        PgpEngine.Decrypted unknown = GpgEngine.parse(status(OPENED, Arrays.asList("NEWSIG", "ERRSIG 4B8971EEBCB908E4 1 10 00 1792304420 9 -"), DONE), plaintext);
+        assertEquals(PgpEngine.Signature.Unknown, unknown.signature);
+
+        PgpEngine.Decrypted noMdc = GpgEngine.parse(status(OPENED, SIGNED, Arrays.asList("DECRYPTION_OKAY", "END_DECRYPTION")), plaintext);
+        assertTrue(noMdc.isRejected());
+
+        PgpEngine.Decrypted locked = GpgEngine.parse(Arrays.asList("ENC_TO A2CD4D3FC5D35EAC 18 0", "ERROR pkdecrypt_failed 67108875", "BEGIN_DECRYPTION", "DECRYPTION_FAILED", "END_DECRYPTION"), new byte[0]);
+        assertFalse(locked.isDecrypted());
+        assertFalse(locked.isRejected());
+    }
+
+    /**
+     * Test of split method, of class GpgEngine.
+     */
+    @Test
+    public void testSplit()
+    {
+        List<String> status = Arrays.asList("FILE_START 3 /tmp/lettera-1/0.gpg", "BEGIN_DECRYPTION", "FILE_DONE", "FILE_START 3 /tmp/lettera-1/2.gpg", "NODATA 1", "FILE_DONE");
+        List<List<String>> files = GpgEngine.split(status, 3);
+        assertEquals(Arrays.asList("BEGIN_DECRYPTION"), files.get(0));
+        assertNull(files.get(1));
+        assertEquals(Arrays.asList("NODATA 1"), files.get(2));
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ *  ImapInboxTest.java
+ *
+ *  Copyright (c) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ */
+package io.francitoshi.lettera;
+
+import com.icegreen.greenmail.configuration.GreenMailConfiguration;
+import com.icegreen.greenmail.junit5.GreenMailExtension;
+import com.icegreen.greenmail.util.ServerSetupTest;
+import io.nut.base.security.SecureChars;
+import jakarta.mail.Message;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+public class ImapInboxTest
+{
+    @RegisterExtension
+    static GreenMailExtension greenMail = new GreenMailExtension(ServerSetupTest.SMTP_POP3_IMAP)
+            .withConfiguration(GreenMailConfiguration.aConfig()
+            .withUser(MailPollTest.ALICE_LOCALHOST, MailPollTest.ALICE, MailPollTest.ALICE_PASSWORD));
+
+    ImapInbox getInbox(boolean readWrite)
+    {
+        return new ImapInbox("localhost", greenMail.getImap().getPort(), true, false, MailPollTest.ALICE, new SecureChars(MailPollTest.ALICE_PASSWORD.toCharArray()), readWrite);
+    }
+
+    /**
+     * Test of getMessagesAfter method, of class ImapInbox.
+     */
+    @Test
+    public void testGetMessagesAfter() throws Exception
+    {
+        MailPollTest.deliver(greenMail, "one", "1");
+        MailPollTest.deliver(greenMail, "two", "2");
+        try(ImapInbox inbox = getInbox(false))
+        {
+            inbox.connect(null);
+            long lastUid = inbox.getLastUID();
+            assertEquals(0, inbox.getMessagesAfter(lastUid).length);
+
+            MailPollTest.deliver(greenMail, "three", "3");
+            inbox.wakeup();
+            Message[] news = inbox.getMessagesAfter(lastUid);
+            assertEquals(1, news.length);
+            assertEquals("three", news[0].getSubject());
+            assertEquals(0, inbox.getMessagesAfter(inbox.getUID(news[0])).length);
+        }
+    }
+
+    /**
+     * Test of moveTo method, of class ImapInbox.
+     */
+    @Test
+    public void testMoveTo() throws Exception
+    {
+        MailPollTest.deliver(greenMail, "one", "1");
+        MailPollTest.deliver(greenMail, "two", "2");
+        try(ImapInbox inbox = getInbox(true))
+        {
+            inbox.connect(null);
+            Message[] all = inbox.getMessagesAfter(0);
+            assertEquals(2, all.length);
+            inbox.moveTo(new Message[]{all[0]}, MailPollTest.FOLDER);
+        }
+        assertEquals(1, MailPollTest.getFolder(greenMail, null).getMessageCount());
+        assertEquals("two", MailPollTest.getFolder(greenMail, null).getMessages().get(0).getMimeMessage().getSubject());
+        assertEquals("one", MailPollTest.getFolder(greenMail, MailPollTest.FOLDER).getMessages().get(0).getMimeMessage().getSubject());
+    }
+}
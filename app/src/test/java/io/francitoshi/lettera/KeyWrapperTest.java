@@ -0,0 +1,73 @@
+/*
+ *  KeyWrapperTest.java
+ *
+ *  Copyright (c) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ */
+package io.francitoshi.lettera;
+
+import java.util.Arrays;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class KeyWrapperTest
+{
+    static final byte[] SEED = "0123456789abcdef0123456789abcdef".getBytes();
+
+    /**
+     * Test of wrapKey and unwrapKey methods, of class KeyWrapper.
+     */
+    @Test
+    public void testWrapUnwrap()
+    {
+        char[] password = "secret".toCharArray();
+        for(long ttl : new long[]{0, 60_000})
+        {
+            KeyWrapper instance = new KeyWrapper(null, SEED, ttl);
+            String wrapped = instance.wrapKey("email", "alice", password);
+            assertTrue(wrapped.startsWith(KeyWrapper.PREFIX));
+            assertNotEquals(wrapped, instance.wrapKey("email", "alice", password));
+            assertArrayEquals(password, instance.unwrapKey("email", "alice", wrapped));
+            // served from the cache, then derived again after lock
+            assertArrayEquals(password, instance.unwrapKey("email", "alice", wrapped));
+            instance.lock();
+            assertArrayEquals(password, instance.unwrapKey("email", "alice", wrapped));
+            // another purpose or name has another key
+            assertThrows(IllegalStateException.class, () -> instance.unwrapKey("gpg", "alice", wrapped));
+            assertThrows(IllegalStateException.class, () -> instance.unwrapKey("email", "bob", wrapped));
+            // and so has another seed
+            assertThrows(IllegalStateException.class, () -> new KeyWrapper(null, "another seed".getBytes(), ttl).unwrapKey("email", "alice", wrapped));
+        }
+    }
+
+    /**
+     * Test of derive method, of class KeyWrapper.
+     */
+    @Test
+    public void testDerive()
+    {
+        byte[] key = KeyWrapper.derive(SEED, "email+alice");
+        assertEquals(32, key.length);
+        assertArrayEquals(key, KeyWrapper.derive(SEED, "email+alice"));
+        assertFalse(Arrays.equals(key, KeyWrapper.derive(SEED, "gpg+alice")));
+    }
+}
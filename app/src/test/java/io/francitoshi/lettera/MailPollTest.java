@@ -0,0 +1,291 @@
+/*
+ *  MailPollTest.java
+ *
+ *  Copyright (c) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ */
+package io.francitoshi.lettera;
+
+import com.icegreen.greenmail.configuration.GreenMailConfiguration;
+import com.icegreen.greenmail.junit5.GreenMailExtension;
+import com.icegreen.greenmail.store.FolderException;
+import com.icegreen.greenmail.store.MailFolder;
+import com.icegreen.greenmail.user.GreenMailUser;
+import com.icegreen.greenmail.util.ServerSetupTest;
+import io.nut.base.security.SecureChars;
+import io.nut.base.util.concurrent.hive.Bee;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeMessage;
+import java.io.File;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+/**
+ * Polls a GreenMail server the way lettera polls a real one, with a
+ * PgpEngine that hands the mail body back as bob's signed note.
+ *
+ * @author franci
+ */
+public class MailPollTest
+{
+    static final String ALICE = "alice";
+    static final String ALICE_PASSWORD = "alice-email-password";
+    static final String ALICE_LOCALHOST = "alice@localhost";
+    static final String BOB = "bob";
+    static final String BOB_PASSWORD = "bob-email-password";
+    static final String BOB_LOCALHOST = "bob@localhost";
+    static final String FOLDER = "Lettera";
+
+    static final Chat ALICE_BOB = new Chat(ALICE, ALICE_LOCALHOST, "AAAA1111", BOB, BOB_LOCALHOST, "BBBB2222", null);
+
+    @RegisterExtension
+    static GreenMailExtension greenMail = new GreenMailExtension(ServerSetupTest.SMTP_POP3_IMAP)
+            .withConfiguration(GreenMailConfiguration.aConfig()
+            .withUser(ALICE_LOCALHOST, ALICE, ALICE_PASSWORD)
+            .withUser(BOB_LOCALHOST, BOB, BOB_PASSWORD));
+
+    /**
+     * Takes the body of every mail as a note signed by bob and counts how
+     * many mails it's given, a mail read twice is counted twice.
+     */
+    static class PlainPgp implements PgpEngine
+    {
+        final AtomicInteger decrypted = new AtomicInteger();
+
+        @Override
+        public byte[] encryptAndSign(byte[] data, boolean armor, String from, char[] pass, String... to)
+        {
+            return data;
+        }
+
+        @Override
+        public List<Decrypted> decryptAll(List<byte[]> data, char[] pass)
+        {
+            ArrayList<Decrypted> list = new ArrayList<>();
+            for(byte[] item : data)
+            {
+                decrypted.incrementAndGet();
+                list.add(new Decrypted(item, Signature.Good, ALICE_BOB.friendKeyid, null));
+            }
+            return list;
+        }
+    }
+
+    static final Bee<Note> HUB = new Bee<Note>()
+    {
+        @Override
+        protected void receive(Note note)
+        {
+        }
+    };
+
+    final PlainPgp pgp = new PlainPgp();
+    final KeyWrapper keyWrapper = new KeyWrapper(null, new SecureRandom().generateSeed(32));
+    File dbFile;
+    LetteraDb db;
+
+    @BeforeEach
+    public void setUp() throws IOException
+    {
+        dbFile = File.createTempFile("lettera-", ".db");
+        db = new LetteraDb(dbFile, "db-passphrase".toCharArray());
+        db.putChat(ALICE_BOB);
+        db.commit();
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException
+    {
+        db.close();
+        dbFile.delete();
+    }
+
+    Account getAccount(boolean imap)
+    {
+        String emailPass = keyWrapper.wrapKey("email", ALICE, ALICE_PASSWORD.toCharArray());
+        String gpgPass = keyWrapper.wrapKey(Lettera.GPG_PURPOSE, ALICE, "alice-gpg-passphrase".toCharArray());
+        return new Account(ALICE, ALICE_LOCALHOST, true, false, "localhost", greenMail.getSmtp().getPort(),
+                imap ? "localhost" : null, greenMail.getImap().getPort(), "localhost", greenMail.getPop3().getPort(), ALICE, emailPass, ALICE_BOB.accountKeyid, gpgPass);
+    }
+
+    MailPoll start(boolean imap, Config.Housekeeping housekeeping)
+    {
+        return new MailPoll(getAccount(imap), keyWrapper, new SecureChars(ALICE_PASSWORD.toCharArray()), db, HUB, housekeeping, FOLDER, null, pgp).start();
+    }
+
+    static void deliver(GreenMailExtension greenMail, String subject, String text) throws MessagingException
+    {
+        MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+        message.setFrom(BOB_LOCALHOST);
+        message.setRecipients(Message.RecipientType.TO, ALICE_LOCALHOST);
+        message.setSubject(subject);
+        message.setSentDate(new Date());
+        message.setText(text);
+        message.saveChanges();
+        greenMail.getUserManager().getUserByEmail(ALICE_LOCALHOST).deliver(message);
+    }
+
+    static void deliver(String subject, String text) throws MessagingException
+    {
+        deliver(greenMail, subject, text);
+    }
+
+    static void deliverNote(String text) throws MessagingException
+    {
+        deliver(ALICE_BOB.getReceivedTag(), text);
+    }
+
+    int getNoteCount()
+    {
+        return db.getNotes(ALICE_BOB.id).size();
+    }
+
+    static MailFolder getFolder(String name) throws FolderException
+    {
+        return getFolder(greenMail, name);
+    }
+
+    static MailFolder getFolder(GreenMailExtension greenMail, String name) throws FolderException
+    {
+        GreenMailUser alice = greenMail.getUserManager().getUserByEmail(ALICE_LOCALHOST);
+        return name==null ? greenMail.getManagers().getImapHostManager().getInbox(alice) : greenMail.getManagers().getImapHostManager().getFolder(alice, name);
+    }
+
+    static void await(Callable<Boolean> done) throws Exception
+    {
+        long deadline = System.nanoTime()+TimeUnit.SECONDS.toNanos(20);
+        while(!done.call())
+        {
+            assertTrue(System.nanoTime()<deadline, "timed out");
+            Thread.sleep(50);
+        }
+    }
+
+    /**
+     * A mail after the stored UID is read once, also by the next run.
+     */
+    @Test
+    public void testImapReadOnce() throws Exception
+    {
+        deliverNote("one");
+        deliverNote("two");
+        deliver("hello", "not a note");
+        MailPoll poll = start(true, Config.Housekeeping.None);
+        await(() -> getNoteCount()==2);
+        deliverNote("three");
+        poll.sync();
+        await(() -> getNoteCount()==3);
+        poll.close();
+
+        poll = start(true, Config.Housekeeping.None);
+        deliverNote("four");
+        poll.sync();
+        await(() -> getNoteCount()==4);
+        poll.close();
+        assertEquals(4, pgp.decrypted.get());
+        assertEquals(4, db.getMailIndex(ALICE, ImapInbox.INBOX).size());
+    }
+
+    /**
+     * The UIDL index kept in the db stops a restart from reading the maildrop
+     * again.
+     */
+    @Test
+    public void testPop3ReadOnce() throws Exception
+    {
+        deliverNote("one");
+        deliverNote("two");
+        deliver("hello", "not a note");
+        MailPoll poll = start(false, Config.Housekeeping.None);
+        await(() -> getNoteCount()==2);
+        poll.close();
+
+        poll = start(false, Config.Housekeeping.None);
+        deliverNote("three");
+        poll.sync();
+        await(() -> getNoteCount()==3);
+        poll.close();
+        assertEquals(3, pgp.decrypted.get());
+        assertEquals(4, getFolder(null).getMessageCount());
+    }
+
+    /**
+     * A PGP/MIME (RFC 3156) mail built by MailPush is read as a note.
+     */
+    @Test
+    public void testPgpMime() throws Exception
+    {
+        Chat bobAlice = new Chat(BOB, BOB_LOCALHOST, ALICE_BOB.friendKeyid, ALICE, ALICE_LOCALHOST, ALICE_BOB.accountKeyid, null);
+        try(SmtpPool smtp = new SmtpPool("localhost", greenMail.getSmtp().getPort(), true, false, BOB, new SecureChars(BOB_PASSWORD.toCharArray()), BOB_LOCALHOST))
+        {
+            MailPush.deliver(bobAlice, smtp, PayloadCodec.encode("sent as pgp/mime", false, null), "", true);
+        }
+        MailPoll poll = start(true, Config.Housekeeping.None);
+        await(() -> getNoteCount()==1);
+        poll.close();
+        assertEquals("sent as pgp/mime", db.getNotes(ALICE_BOB.id).values().iterator().next().text);
+    }
+
+    /**
+     * Only the mails of a chat are moved, the others stay in INBOX.
+     */
+    @Test
+    public void testHousekeepingMove() throws Exception
+    {
+        deliverNote("one");
+        deliver("hello", "not a note");
+        deliver(ALICE_BOB.getSentTag(), "alice to bob");
+        MailPoll poll = start(true, Config.Housekeeping.Move);
+        await(() -> getNoteCount()==1 && getFolder(null).getMessageCount()==2);
+        poll.close();
+        assertEquals(1, getFolder(FOLDER).getMessageCount());
+        assertEquals(ALICE_BOB.getReceivedTag(), getFolder(FOLDER).getMessages().get(0).getMimeMessage().getSubject());
+        assertTrue(db.getMailIndex(ALICE, ImapInbox.INBOX).isEmpty());
+    }
+
+    /**
+     * Only the mails of a chat are deleted from the maildrop.
+     */
+    @Test
+    public void testHousekeepingDelete() throws Exception
+    {
+        deliverNote("one");
+        deliver("hello", "not a note");
+        MailPoll poll = start(false, Config.Housekeeping.Delete);
+        await(() -> getNoteCount()==1);
+        deliverNote("two");
+        poll.sync();
+        await(() -> getNoteCount()==2 && getFolder(null).getMessageCount()==1);
+        poll.close();
+        assertEquals("hello", getFolder(null).getMessages().get(0).getMimeMessage().getSubject());
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ *  MailPushTest.java
+ *
+ *  Copyright (c) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ */
+package io.francitoshi.lettera;
+
+import jakarta.mail.Multipart;
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeMessage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Properties;
+import java.util.Random;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class MailPushTest
+{
+    /**
+     * Test of getPgpMime method, of class MailPush, the binary message comes
+     * back unchanged once written and parsed again.
+     */
+    @Test
+    public void testGetPgpMime() throws Exception
+    {
+        byte[] ciphertext = new byte[4096];
+        new Random(1234).nextBytes(ciphertext);
+        Session session = Session.getInstance(new Properties());
+        MimeMessage message = new MimeMessage(session);
+        message.setContent(MailPush.getPgpMime(ciphertext));
+        message.saveChanges();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        message.writeTo(out);
+
+        MimeMessage parsed = new MimeMessage(session, new ByteArrayInputStream(out.toByteArray()));
+        assertTrue(parsed.isMimeType("multipart/encrypted"));
+        assertTrue(parsed.getContentType().contains(MailPush.PGP_ENCRYPTED));
+        Multipart multipart = (Multipart) parsed.getContent();
+        assertEquals(2, multipart.getCount());
+        assertTrue(multipart.getBodyPart(0).isMimeType(MailPush.PGP_ENCRYPTED));
+        assertTrue(multipart.getBodyPart(1).isMimeType(MailPush.OCTET_STREAM));
+        assertArrayEquals(ciphertext, MailPoll.getCiphertext(parsed));
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ *  NoteBundleTest.java
+ *
+ *  Copyright (c) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ */
+package io.francitoshi.lettera;
+
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+
+public class NoteBundleTest
+{
+    static Note note(long id, String text)
+    {
+        return new Note(id, 1000+id, "chat", "alice@localhost", "bob@localhost", "AAAA1111", "BBBB2222", 0, 0, text);
+    }
+
+    /**
+     * Test of encode and decode methods, of class NoteBundle.
+     */
+    @Test
+    public void testEncodeDecode()
+    {
+        String single = NoteBundle.encode(Arrays.asList(note(1, "hello")));
+        assertEquals("hello", single);
+        List<NoteBundle.Part> parts = NoteBundle.decode(single, false);
+        assertEquals(1, parts.size());
+        assertEquals("hello", parts.get(0).text);
+        assertEquals(0, parts.get(0).id);
+
+        String bundle = NoteBundle.encode(Arrays.asList(note(1, "hello"), note(2, "two\nlines"), note(3, ""), note(4, "10 20 30\n")));
+        parts = NoteBundle.decode(bundle, true);
+        assertEquals(4, parts.size());
+        assertEquals(1, parts.get(0).id);
+        assertEquals(1001, parts.get(0).epochSecond);
+        assertEquals("hello", parts.get(0).text);
+        assertEquals("two\nlines", parts.get(1).text);
+        assertEquals("", parts.get(2).text);
+        assertEquals("10 20 30\n", parts.get(3).text);
+        assertEquals(4, parts.get(3).id);
+
+        // a single note that looks like a bundle is still a single note
+        assertEquals(bundle, NoteBundle.decode(bundle, false).get(0).text);
+
+        assertThrows(IllegalArgumentException.class, () -> NoteBundle.decode("1 2 99\nshort\n", true));
+        assertThrows(IllegalArgumentException.class, () -> NoteBundle.decode("1 2\n", true));
+    }
+}
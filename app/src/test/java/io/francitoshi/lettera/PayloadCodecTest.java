@@ -0,0 +1,91 @@
+/*
+ *  PayloadCodecTest.java
+ *
+ *  Copyright (c) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ */
+package io.francitoshi.lettera;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+public class PayloadCodecTest
+{
+    static Note note(long id, String from, String text)
+    {
+        return new Note(id, id, "chat", from, "alice@localhost", "BBBB2222", "AAAA1111", 0, 0, text);
+    }
+
+    /**
+     * Test of encode and decode methods, of class PayloadCodec.
+     */
+    @Test
+    public void testEncodeDecode() throws IOException
+    {
+        List<Note> notes = Arrays.asList(
+                note(1, "bob@localhost", "the build of the release branch finished without errors"),
+                note(2, "alice@localhost", "ok"),
+                note(3, "bob@localhost", "the build of the master branch finished without errors"));
+        List<String> dictionary = PayloadCodec.getDictionary(notes, "bob@localhost");
+        assertEquals(2, dictionary.size());
+        assertEquals(notes.get(0).text, dictionary.get(0));
+
+        String text = "the build of the develop branch finished without errors";
+        byte[] payload = PayloadCodec.encode(text, false, dictionary);
+        assertEquals(PayloadCodec.MARKER, payload[0]);
+        assertTrue(payload.length<text.length());
+        // the friend looks up the dictionary among all its notes
+        assertEquals(text, PayloadCodec.decode(payload, Arrays.asList("ok", notes.get(2).text, notes.get(0).text)));
+        assertThrows(PayloadCodec.MissingDictionaryException.class, () -> PayloadCodec.decode(payload, Collections.singletonList(notes.get(0).text)));
+        // not compressed for a friend whose client can't decompress
+        assertArrayEquals(text.getBytes(StandardCharsets.UTF_8), PayloadCodec.encode(text, false, null));
+
+        // too short to pay off, and plain notes from older versions
+        assertArrayEquals("hi".getBytes(StandardCharsets.UTF_8), PayloadCodec.encode("hi", false, Collections.emptyList()));
+        assertEquals("hi", PayloadCodec.decode("hi".getBytes(StandardCharsets.UTF_8), Collections.emptyList()));
+
+        // a bundle is always framed, even when it doesn't compress
+        byte[] bundle = PayloadCodec.encode("hi", true, Collections.emptyList());
+        assertTrue(PayloadCodec.isBundle(bundle));
+        assertEquals("hi", PayloadCodec.decode(bundle, Collections.emptyList()));
+        assertFalse(PayloadCodec.isBundle(payload));
+        assertTrue(PayloadCodec.isBundle(PayloadCodec.encode(text, true, null)));
+    }
+
+    /**
+     * Test of canDeflate and canUseDictionary methods, of class PayloadCodec.
+     */
+    @Test
+    public void testCapabilities()
+    {
+        assertFalse(PayloadCodec.canDeflate(null));
+        assertFalse(PayloadCodec.canDeflate(""));
+        assertTrue(PayloadCodec.canDeflate(PayloadCodec.getCapabilities(false)));
+        assertFalse(PayloadCodec.canUseDictionary(PayloadCodec.getCapabilities(false)));
+        assertTrue(PayloadCodec.canUseDictionary(PayloadCodec.getCapabilities(true)));
+        assertFalse(PayloadCodec.canUseDictionary("1 dictionary"));
+    }
+}
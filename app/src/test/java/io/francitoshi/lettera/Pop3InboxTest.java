@@ -0,0 +1,103 @@
+/*
+ *  Pop3InboxTest.java
+ *
+ *  Copyright (c) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ */
+package io.francitoshi.lettera;
+
+import com.icegreen.greenmail.configuration.GreenMailConfiguration;
+import com.icegreen.greenmail.junit5.GreenMailExtension;
+import com.icegreen.greenmail.util.ServerSetupTest;
+import io.nut.base.security.SecureChars;
+import jakarta.mail.Message;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+public class Pop3InboxTest
+{
+    @RegisterExtension
+    static GreenMailExtension greenMail = new GreenMailExtension(ServerSetupTest.SMTP_POP3_IMAP)
+            .withConfiguration(GreenMailConfiguration.aConfig()
+            .withUser(MailPollTest.ALICE_LOCALHOST, MailPollTest.ALICE, MailPollTest.ALICE_PASSWORD));
+
+    Pop3Inbox getInbox(boolean readWrite)
+    {
+        return new Pop3Inbox("localhost", greenMail.getPop3().getPort(), true, false, MailPollTest.ALICE, new SecureChars(MailPollTest.ALICE_PASSWORD.toCharArray()), readWrite);
+    }
+
+    static String[] getUIDs(Pop3Inbox inbox) throws Exception
+    {
+        Message[] messages = inbox.getMessages();
+        String[] uids = new String[messages.length];
+        for(int i=0;i<messages.length;i++)
+        {
+            uids[i] = inbox.getUID(messages[i]);
+        }
+        return uids;
+    }
+
+    /**
+     * Test of getUID method, of class Pop3Inbox, the UIDL of a message is the
+     * same in every session.
+     */
+    @Test
+    public void testGetUID() throws Exception
+    {
+        MailPollTest.deliver(greenMail, "one", "1");
+        MailPollTest.deliver(greenMail, "two", "2");
+        String[] first;
+        try(Pop3Inbox inbox = getInbox(false))
+        {
+            inbox.connect();
+            first = getUIDs(inbox);
+        }
+        assertEquals(2, first.length);
+        assertNotEquals(first[0], first[1]);
+
+        MailPollTest.deliver(greenMail, "three", "3");
+        try(Pop3Inbox inbox = getInbox(false))
+        {
+            inbox.connect();
+            String[] second = getUIDs(inbox);
+            assertEquals(3, second.length);
+            assertEquals(first[0], second[0]);
+            assertEquals(first[1], second[1]);
+        }
+    }
+
+    /**
+     * Test of delete method, of class Pop3Inbox, only what was deleted leaves
+     * the maildrop, and only once the session ends.
+     */
+    @Test
+    public void testDelete() throws Exception
+    {
+        MailPollTest.deliver(greenMail, "one", "1");
+        MailPollTest.deliver(greenMail, "two", "2");
+        try(Pop3Inbox inbox = getInbox(true))
+        {
+            inbox.connect();
+            inbox.delete(new Message[]{inbox.getMessages()[0]});
+            assertEquals(2, MailPollTest.getFolder(greenMail, null).getMessageCount());
+        }
+        assertEquals(1, MailPollTest.getFolder(greenMail, null).getMessageCount());
+        assertEquals("two", MailPollTest.getFolder(greenMail, null).getMessages().get(0).getMimeMessage().getSubject());
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ *  SmtpPoolTest.java
+ *
+ *  Copyright (c) 2026 francitoshi@gmail.com
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *  Report bugs or new features to: francitoshi@gmail.com
+ */
+package io.francitoshi.lettera;
+
+import com.icegreen.greenmail.configuration.GreenMailConfiguration;
+import com.icegreen.greenmail.junit5.GreenMailExtension;
+import com.icegreen.greenmail.util.ServerSetupTest;
+import io.nut.base.security.SecureChars;
+import jakarta.mail.MessagingException;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+
+public class SmtpPoolTest
+{
+    @RegisterExtension
+    static GreenMailExtension greenMail = new GreenMailExtension(ServerSetupTest.SMTP_POP3_IMAP)
+            .withConfiguration(GreenMailConfiguration.aConfig()
+            .withUser(MailPollTest.ALICE_LOCALHOST, MailPollTest.ALICE, MailPollTest.ALICE_PASSWORD));
+
+    static SmtpPool getPool(int port, boolean auth)
+    {
+        return new SmtpPool("localhost", port, auth, false, MailPollTest.ALICE, new SecureChars(MailPollTest.ALICE_PASSWORD.toCharArray()), MailPollTest.ALICE_LOCALHOST);
+    }
+
+    /**
+     * Test of send method, of class SmtpPool, a pooled connection the server
+     * dropped is replaced and the message is sent once.
+     */
+    @Test
+    public void testSendStale() throws Exception
+    {
+        try(SmtpPool pool = getPool(greenMail.getSmtp().getPort(), true))
+        {
+            pool.send("one", "1", MailPollTest.BOB_LOCALHOST);
+            assertEquals(1, greenMail.getReceivedMessages().length);
+            // drops every connection, the pooled one included
+            greenMail.reset();
+            greenMail.setUser(MailPollTest.ALICE_LOCALHOST, MailPollTest.ALICE, MailPollTest.ALICE_PASSWORD);
+            pool.send("two", "2", MailPollTest.BOB_LOCALHOST);
+            assertEquals(1, greenMail.getReceivedMessages().length);
+            assertEquals("two", greenMail.getReceivedMessages()[0].getSubject());
+            pool.send("three", "3", MailPollTest.BOB_LOCALHOST);
+            assertEquals(2, greenMail.getReceivedMessages().length);
+        }
+    }
+
+    /**
+     * Test of send method, of class SmtpPool, a connection lost after DATA
+     * isn't retried, the server may already have the message.
+     */
+    @Test
+    public void testSendLostInData() throws Exception
+    {
+        AtomicInteger connections = new AtomicInteger();
+        AtomicInteger data = new AtomicInteger();
+        try(ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress()))
+        {
+            Thread th = new Thread(() ->
+            {
+                try
+                {
+                    while(!server.isClosed())
+                    {
+                        try(Socket socket = server.accept())
+                        {
+                            connections.incrementAndGet();
+                            serve(socket, data);
+                        }
+                    }
+                }
+                catch (IOException ex)
+                {
+                    // closed by the test
+                }
+            }, "SmtpPoolTest");
+            th.setDaemon(true);
+            th.start();
+            try(SmtpPool pool = getPool(server.getLocalPort(), false))
+            {
+                assertThrows(MessagingException.class, () -> pool.send("one", "1", MailPollTest.BOB_LOCALHOST));
+            }
+        }
+        assertEquals(1, connections.get());
+        assertEquals(1, data.get());
+    }
+
+    /**
+     * Just enough SMTP to take a message, the connection is closed as soon as
+     * the message starts to arrive.
+     */
+    static void serve(Socket socket, AtomicInteger data) throws IOException
+    {
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+        OutputStream out = socket.getOutputStream();
+        reply(out, "220 localhost ESMTP");
+        for(String line; (line = in.readLine())!=null;)
+        {
+            String command = line.length()<4 ? line : line.substring(0, 4).toUpperCase();
+            switch(command)
+            {
+                case "EHLO":
+                case "HELO":
+                    reply(out, "250 localhost");
+                    break;
+                case "DATA":
+                    data.incrementAndGet();
+                    reply(out, "354 go ahead");
+                    in.readLine();
+                    return;
+                case "QUIT":
+                    reply(out, "221 bye");
+                    return;
+                default:
+                    reply(out, "250 OK");
+            }
+        }
+    }
+
+    static void reply(OutputStream out, String line)
+    {
+        try
+        {
+            out.write((line+"\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+        }
+        catch (IOException ex)
+        {
+            throw new UncheckedIOException(ex);
+        }
+    }
+}